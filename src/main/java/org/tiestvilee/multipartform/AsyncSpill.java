@@ -0,0 +1,167 @@
+package org.tiestvilee.multipartform;
+
+import org.tiestvilee.multipartform.stream.BufferPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a part to disk through an <code>AsynchronousFileChannel</code>. Each chunk queued is written at once, at
+ * its place in the file, so the parsing thread only waits for the disk when all the chunks are being written.
+ * <code>finish()</code> doesn't wait at all: it returns a future that completes once every write has finished and
+ * the channel is closed.
+ */
+class AsyncSpill implements ChunkedSpill {
+    private final AsynchronousFileChannel channel;
+    private final int maxChunks;
+    private final int chunkSize;
+    private final BlockingQueue<ByteBuffer> empty;
+    // the writes in flight, and one more until the parsing thread has finished
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final CompletableFuture<Void> written = new CompletableFuture<>();
+    private int chunks = 0;
+    private long position = 0;
+    private boolean abandoned = false;
+    private volatile Throwable failure;
+
+    AsyncSpill(AsynchronousFileChannel channel, int maxChunks, int chunkSize) {
+        this.channel = channel;
+        this.maxChunks = maxChunks;
+        this.chunkSize = chunkSize;
+        this.empty = new ArrayBlockingQueue<>(maxChunks);
+    }
+
+    @Override public ByteBuffer emptyChunk() throws IOException {
+        checkFailure();
+        ByteBuffer chunk = empty.poll();
+        if (chunk == null && chunks < maxChunks) {
+            chunks++;
+            return BufferPool.shared().borrowDirect(chunkSize);
+        }
+        try {
+            chunk = chunk == null ? empty.take() : chunk;
+        } catch (InterruptedException e) {
+            abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write to disk");
+        }
+        checkFailure();
+        return chunk;
+    }
+
+    @Override public void queue(ByteBuffer chunk) throws IOException {
+        checkFailure();
+        chunk.flip();
+        pending.incrementAndGet();
+        Write write = new Write(chunk, position);
+        position += chunk.remaining();
+        write.start();
+    }
+
+    /**
+     * Called by the parsing thread once it has queued everything.
+     *
+     * @return a future that completes once everything queued has been written, or with the reason it couldn't be
+     */
+    CompletableFuture<Void> finish() {
+        done();
+        return written;
+    }
+
+    /**
+     * @return the future returned by <code>finish</code>, for when the spill was abandoned instead
+     */
+    CompletableFuture<Void> whenWritten() {
+        return written;
+    }
+
+    /**
+     * @return the number of bytes queued
+     */
+    long length() {
+        return position;
+    }
+
+    @Override public void abandon() {
+        if (abandoned) {
+            return; // done() must only count the parsing thread out once
+        }
+        abandoned = true;
+        if (failure == null) {
+            failure = new IOException("Abandoned writing part to disk");
+        }
+        done();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to write part to disk", failure);
+        }
+    }
+
+    private void done() {
+        if (pending.decrementAndGet() > 0) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        ByteBuffer chunk;
+        while ((chunk = empty.poll()) != null) {
+            BufferPool.shared().giveBack(chunk);
+        }
+        if (failure == null) {
+            written.complete(null);
+        } else {
+            written.completeExceptionally(failure);
+        }
+    }
+
+    private class Write implements CompletionHandler<Integer, Void> {
+        private final ByteBuffer chunk;
+        private final long start;
+
+        Write(ByteBuffer chunk, long start) {
+            this.chunk = chunk;
+            this.start = start;
+        }
+
+        void start() {
+            try {
+                channel.write(chunk, start + chunk.position(), null, this);
+            } catch (RuntimeException e) {
+                failed(e, null);
+            }
+        }
+
+        @Override public void completed(Integer count, Void attachment) {
+            if (chunk.hasRemaining() && failure == null) {
+                start();
+                return;
+            }
+            chunk.clear();
+            empty.add(chunk);
+            done();
+        }
+
+        @Override public void failed(Throwable e, Void attachment) {
+            if (failure == null) {
+                failure = e;
+            }
+            chunk.clear();
+            empty.add(chunk);
+            done();
+        }
+    }
+}
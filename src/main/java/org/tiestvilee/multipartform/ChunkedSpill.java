@@ -0,0 +1,26 @@
+package org.tiestvilee.multipartform;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the parsing thread hands the contents of a part, a chunk at a time, to be written to disk by someone else.
+ */
+interface ChunkedSpill {
+
+    /**
+     * @return an empty chunk to fill and then <code>queue</code>, waiting for one if too many are being written
+     * @throws IOException if writing has failed
+     */
+    ByteBuffer emptyChunk() throws IOException;
+
+    /**
+     * Queues the bytes put into <code>chunk</code> to be written after those queued before.
+     */
+    void queue(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Stops writing, for when the part couldn't be read. Calling it again does nothing.
+     */
+    void abandon();
+}
@@ -0,0 +1,84 @@
+package org.tiestvilee.multipartform;
+
+import org.tiestvilee.multipartform.exceptions.ParseError;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Adds header lines to <code>PartHeaders</code> straight from their bytes. Names, colons, whitespace and folded
+ * lines are found in the bytes, and values are kept as bytes until they are read, so a line usually allocates
+ * nothing but its name, and not even that for well known names. Forms in charsets that don't encode ASCII as
+ * ASCII are decoded a line at a time as before.
+ */
+class HeaderLineParser {
+    private static final String ASCII_PROBE = "\t !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~";
+
+    private final Charset encoding;
+    // the charset encodes ASCII as ASCII, so ASCII bytes can be found without decoding
+    private final boolean asciiCompatible;
+
+    HeaderLineParser(Charset encoding) {
+        this.encoding = encoding;
+        this.asciiCompatible = Arrays.equals(
+            ASCII_PROBE.getBytes(encoding), ASCII_PROBE.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    PartHeaders newHeaders() {
+        return new PartHeaders(encoding);
+    }
+
+    /**
+     * As <code>StreamingMultipartFormParts.addHeaderLine</code>, for a line of <code>length</code> bytes.
+     *
+     * @return the name of the header the line belongs to
+     */
+    String addHeaderLine(PartHeaders headers, String previousHeaderName, byte[] line, int length) {
+        if (!asciiCompatible) {
+            return StreamingMultipartFormParts.addHeaderLine(headers, previousHeaderName, new String(line, 0, length, encoding));
+        }
+
+        if (isWhitespace(line[0])) {
+            int from = trimStart(line, 0, length);
+            headers.fold(previousHeaderName, line, from, trimEnd(line, from, length));
+            return previousHeaderName;
+        }
+        int colon = indexOf(line, length, (byte) ':');
+        if (colon < 0) {
+            throw new ParseError("Header didn't include a colon <<" + new String(line, 0, length, encoding) + ">>");
+        }
+        int nameFrom = trimStart(line, 0, colon);
+        int valueFrom = trimStart(line, colon + 1, length);
+        return headers.add(line, nameFrom, trimEnd(line, nameFrom, colon), valueFrom, trimEnd(line, valueFrom, length));
+    }
+
+    // as String.trim(), which only removes characters no bigger than a space; they are all ASCII
+    private static int trimStart(byte[] line, int from, int to) {
+        while (from < to && (line[from] & 0x0FF) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] line, int from, int to) {
+        while (to > from && (line[to - 1] & 0x0FF) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private static int indexOf(byte[] line, int length, byte b) {
+        for (int i = 0; i < length; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        // the characters matched by \s
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+}
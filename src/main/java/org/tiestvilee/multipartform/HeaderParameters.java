@@ -0,0 +1,136 @@
+package org.tiestvilee.multipartform;
+
+import org.apache.commons.fileupload.util.mime.MimeUtility;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The parameters of a <code>Content-Disposition</code> or <code>Content-Type</code> header that the parser needs.
+ * <code>parse</code> reads them the way <code>ParameterParser</code> does (names are case sensitive, values are
+ * trimmed and unquoted, and encoded words are decoded) but walks the header value in place and keeps only
+ * <code>name</code>, <code>filename</code>, <code>boundary</code> and <code>charset</code>, so it builds no
+ * char array or map, and only Strings for the values it keeps.
+ * <br/>
+ * <code>parse</code> holds no state, so it is safe to call from any number of threads.
+ */
+final class HeaderParameters {
+    String name;
+    String filename;
+    String boundary;
+    String charset;
+    // whether these parameters appeared at all, as ParameterParser maps them to null when they have no value
+    boolean hasFilename;
+    boolean attachment;
+
+    private HeaderParameters() {
+    }
+
+    /**
+     * @param header the value of the header, or null if it wasn't there
+     * @return the parameters of the header
+     */
+    static HeaderParameters parse(String header) {
+        HeaderParameters result = new HeaderParameters();
+        if (header == null) {
+            return result;
+        }
+
+        int length = header.length();
+        int position = 0;
+        while (position < length) {
+            int nameStart = position;
+            while (position < length && header.charAt(position) != '=' && header.charAt(position) != ';') {
+                position++;
+            }
+            int nameEnd = position;
+            while (nameStart < nameEnd && Character.isWhitespace(header.charAt(nameStart))) {
+                nameStart++;
+            }
+            while (nameEnd > nameStart && Character.isWhitespace(header.charAt(nameEnd - 1))) {
+                nameEnd--;
+            }
+
+            int valueStart = -1;
+            int valueEnd = -1;
+            if (position < length && header.charAt(position) == '=') {
+                position++;
+                valueStart = position;
+                boolean quoted = false;
+                boolean escaped = false;
+                while (position < length) {
+                    char c = header.charAt(position);
+                    if (!quoted && c == ';') {
+                        break;
+                    }
+                    if (!escaped && c == '"') {
+                        quoted = !quoted;
+                    }
+                    escaped = !escaped && c == '\\';
+                    position++;
+                }
+                valueEnd = position;
+            }
+            if (position < length) {
+                position++; // skip ';'
+            }
+
+            result.set(header, nameStart, nameEnd, valueStart, valueEnd);
+        }
+        return result;
+    }
+
+    /**
+     * @return the trimmed filename, "" if the parameter has no value, or null if there is no filename parameter
+     */
+    String fileName() {
+        if (hasFilename) {
+            return filename == null ? "" : filename.trim();
+        }
+        return null;
+    }
+
+    private void set(String header, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int nameLength = nameEnd - nameStart;
+        if (is("name", header, nameStart, nameLength)) {
+            name = value(header, valueStart, valueEnd);
+        } else if (is("filename", header, nameStart, nameLength)) {
+            filename = value(header, valueStart, valueEnd);
+            hasFilename = true;
+        } else if (is("boundary", header, nameStart, nameLength)) {
+            boundary = value(header, valueStart, valueEnd);
+        } else if (is("charset", header, nameStart, nameLength)) {
+            charset = value(header, valueStart, valueEnd);
+        } else if (is("attachment", header, nameStart, nameLength)) {
+            attachment = true;
+        }
+    }
+
+    private static boolean is(String parameter, String header, int nameStart, int nameLength) {
+        return nameLength == parameter.length() && header.regionMatches(nameStart, parameter, 0, nameLength);
+    }
+
+    private static String value(String header, int start, int end) {
+        if (start < 0) {
+            return null;
+        }
+        while (start < end && Character.isWhitespace(header.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(header.charAt(end - 1))) {
+            end--;
+        }
+        if (end - start >= 2 && header.charAt(start) == '"' && header.charAt(end - 1) == '"') {
+            start++;
+            end--;
+        }
+        if (end <= start) {
+            return null;
+        }
+        String value = header.substring(start, end);
+        try {
+            return MimeUtility.decodeText(value);
+        } catch (UnsupportedEncodingException e) {
+            return value; // keep the original value, as ParameterParser does
+        }
+    }
+}
@@ -1,16 +1,35 @@
 package org.tiestvilee.multipartform;
 
 import org.tiestvilee.multipartform.exceptions.ParseError;
+import org.tiestvilee.multipartform.exceptions.StreamTooLongException;
 import org.tiestvilee.multipartform.part.*;
+import org.tiestvilee.multipartform.stream.BufferPool;
+import org.tiestvilee.multipartform.stream.ChunkedBytes;
+import org.tiestvilee.multipartform.stream.MemoryBudget;
+import org.tiestvilee.multipartform.stream.PartInputStream;
+import org.tiestvilee.multipartform.stream.StreamUtil;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 public class MultipartFormMap {
+    private static final int SPILL_CHUNK_SIZE = 64 * 1024;
+    private static final int PIPELINED_SPILL_CHUNKS = 4;
+    private static final int PIPELINED_SPILL_CHUNK_SIZE = 256 * 1024;
 
     /**
      * Returns a Parts object containing a map of FieldName -> Part, serialised from parts using the encoding
@@ -21,6 +40,9 @@ public class MultipartFormMap {
      * <p>
      * The Parts object must be closed when finished with so that the files that have been written to disk can be
      * deleted.
+     * <p>
+     * Parts kept in memory are reserved against <code>MemoryBudget.shared()</code> until they are closed. When the
+     * budget is tight, Parts are written to disk before they reach the threshold.
      *
      * @param parts                  streaming parts
      * @param encoding               encoding of the stream
@@ -33,21 +55,188 @@ public class MultipartFormMap {
      * @throws IOException
      */
     public static Parts formMap(Iterable<StreamingPart> parts, Charset encoding, int writeToDiskThreshold, File temporaryFileDirectory) throws IOException {
+        return formMap(parts, encoding, writeToDiskThreshold, temporaryFileDirectory, null);
+    }
+
+    /**
+     * As <code>formMap(Iterable, Charset, int, File)</code>, but Parts that are written to disk are written by a task
+     * on <code>spillWriter</code> while the parsing thread carries on reading them, so parsing and writing overlap.
+     * The parsing thread hands over the contents in four 256KB chunks, and waits for the writer when they are all
+     * queued, so a slow disk holds up parsing rather than filling memory. This returns once every file has been
+     * written and closed.
+     *
+     * @param spillWriter runs the writer for each Part written to disk. It must run it on another thread, as the
+     *                    parsing thread waits for it. Writes on the parsing thread if null.
+     */
+    public static Parts formMap(Iterable<StreamingPart> parts, Charset encoding, int writeToDiskThreshold, File temporaryFileDirectory, Executor spillWriter) throws IOException {
+        return formMap(parts, encoding, writeToDiskThreshold, SpillFilePool.unpooled(temporaryFileDirectory), spillWriter);
+    }
+
+    /**
+     * As <code>formMap(Iterable, Charset, int, File, Executor)</code>, but Parts that are written to disk are written
+     * to files from <code>spillFiles</code>, and closing the Parts gives the files back to it, so that a pool shared
+     * across requests reuses the same few files instead of creating and deleting one for every big Part.
+     *
+     * @param spillFiles  where to get the files for Parts that are too big
+     * @param spillWriter runs the writer for each Part written to disk, or null to write on the parsing thread
+     */
+    public static Parts formMap(Iterable<StreamingPart> parts, Charset encoding, int writeToDiskThreshold, SpillFilePool spillFiles, Executor spillWriter) throws IOException {
+        Map<String, List<Part>> partMap = new HashMap<>();
         try {
-            Map<String, List<Part>> partMap = new HashMap<>();
-            byte[] bytes = new byte[writeToDiskThreshold];
+            for (StreamingPart part : parts) {
+                List<Part> keyParts = partMap.containsKey(part.getFieldName()) ?
+                    partMap.get(part.getFieldName()) :
+                    new ArrayList<>();
+
+                keyParts.add(serialisePart(encoding, writeToDiskThreshold, spillFiles, spillWriter, part, part.inputStream));
+                partMap.put(part.getFieldName(), keyParts);
+            }
+            return new Parts(partMap);
+        } catch (IOException | RuntimeException e) {
+            // stupid... cos 'iterator' doesn't throw exceptions
+            Throwable failure = e instanceof ParseError && e.getCause() instanceof IOException ? e.getCause() : e;
+            // nothing else will release the memory and files of the Parts read so far
+            try {
+                new Parts(partMap).close();
+            } catch (IOException closeFailure) {
+                failure.addSuppressed(closeFailure);
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * As <code>formMap(Iterable, Charset, int, File)</code>, but Parts that are written to disk are written through an
+     * <code>AsynchronousFileChannel</code>, so the calling thread doesn't wait on the disk. The form is still read on
+     * the calling thread, which hands each Part to disk in 256KB chunks and waits only if a Part's writes fall more
+     * than four chunks behind.
+     * <br/>
+     * The future completes once the form has been read and every file written, or exceptionally with the reason it
+     * couldn't be, in which case any files written are deleted.
+     */
+    public static CompletableFuture<Parts> formMapAsync(Iterable<StreamingPart> parts, Charset encoding, int writeToDiskThreshold, File temporaryFileDirectory) {
+        return formMapAsync(parts, encoding, writeToDiskThreshold, temporaryFileDirectory, null);
+    }
+
+    /**
+     * @param partWritten is given each Part written to disk as soon as its file is complete, without waiting for
+     *                    the rest of the form, on whichever thread finished writing it. Can be null.
+     */
+    public static CompletableFuture<Parts> formMapAsync(Iterable<StreamingPart> parts, Charset encoding, int writeToDiskThreshold, File temporaryFileDirectory, Consumer<? super DiskBackedPart> partWritten) {
+        return formMapAsync(parts, encoding, writeToDiskThreshold, SpillFilePool.unpooled(temporaryFileDirectory), partWritten);
+    }
 
+    /**
+     * As <code>formMapAsync(Iterable, Charset, int, File, Consumer)</code>, but with files from <code>spillFiles</code>,
+     * as <code>formMap(Iterable, Charset, int, SpillFilePool, Executor)</code>.
+     */
+    public static CompletableFuture<Parts> formMapAsync(Iterable<StreamingPart> parts, Charset encoding, int writeToDiskThreshold, SpillFilePool spillFiles, Consumer<? super DiskBackedPart> partWritten) {
+        Map<String, List<Part>> partMap = new HashMap<>();
+        List<Part> serialised = new ArrayList<>();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        Throwable failure = null;
+
+        try {
             for (StreamingPart part : parts) {
                 List<Part> keyParts = partMap.containsKey(part.getFieldName()) ?
                     partMap.get(part.getFieldName()) :
                     new ArrayList<>();
 
-                keyParts.add(serialisePart(encoding, writeToDiskThreshold, temporaryFileDirectory, part, part.inputStream, bytes));
+                Part serialisedPart = serialisePartAsync(encoding, writeToDiskThreshold, spillFiles, part, part.inputStream, writes, partWritten);
+                serialised.add(serialisedPart);
+                keyParts.add(serialisedPart);
+                partMap.put(part.getFieldName(), keyParts);
+            }
+        } catch (ParseError e) {
+            failure = e.getCause() instanceof IOException ? e.getCause() : e;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+
+        Throwable parseFailure = failure;
+        CompletableFuture<Parts> result = new CompletableFuture<>();
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, writeFailure) -> {
+            Throwable cause = parseFailure != null ? parseFailure : writeFailure;
+            if (cause == null) {
+                result.complete(new Parts(partMap));
+                return;
+            }
+            for (Part part : serialised) {
+                try {
+                    part.close();
+                } catch (IOException e) {
+                    cause.addSuppressed(e);
+                }
+            }
+            result.completeExceptionally(cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+        });
+        return result;
+    }
+
+    /**
+     * Returns a Parts object for a body that is already on disk, without copying it. The file is memory-mapped and
+     * parsed in place, and each Part is a <code>ByteBufferPart</code> over a slice of the mapping. The mapping is
+     * released when the Parts are no longer referenced; closing the channel doesn't invalidate it.
+     *
+     * @param file     of the whole body, at most 2GB long
+     * @param boundary byte array defining the boundary between parts
+     * @param encoding encoding of the body
+     * @return Parts object, which contains the Map of Fieldname to List of Parts
+     * @throws IOException
+     */
+    public static Parts formMap(FileChannel file, byte[] boundary, Charset encoding) throws IOException {
+        long size = file.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new StreamTooLongException("Form contents was longer than " + Integer.MAX_VALUE + " bytes, the most that can be mapped");
+        }
+        return formMap(file.map(FileChannel.MapMode.READ_ONLY, 0, size), boundary, encoding);
+    }
+
+    /**
+     * Returns a Parts object for a body that is already in one array, without copying it. Each Part is an
+     * <code>InMemoryPart</code> that holds only its offset and length in <code>body</code>, so <code>body</code>
+     * must not be changed while the Parts are in use.
+     *
+     * @param body     array holding the whole body
+     * @param offset   of the body in the array
+     * @param length   of the body
+     * @param boundary byte array defining the boundary between parts
+     * @param encoding encoding of the body
+     * @return Parts object, which contains the Map of Fieldname to List of Parts
+     * @throws IOException
+     */
+    public static Parts formMap(byte[] body, int offset, int length, byte[] boundary, Charset encoding) throws IOException {
+        return formMap(ByteBuffer.wrap(body, offset, length), boundary, encoding);
+    }
+
+    /**
+     * Returns a Parts object for a body that is already in memory, or memory-mapped, without copying it. If
+     * <code>body</code> is backed by an accessible array each Part is an <code>InMemoryPart</code> over it,
+     * otherwise a <code>ByteBufferPart</code> over a slice of <code>body</code>.
+     *
+     * @param body     the whole body, from its position to its limit
+     * @param boundary byte array defining the boundary between parts
+     * @param encoding encoding of the body
+     * @return Parts object, which contains the Map of Fieldname to List of Parts
+     * @throws IOException
+     */
+    public static Parts formMap(ByteBuffer body, byte[] boundary, Charset encoding) throws IOException {
+        try {
+            Map<String, List<Part>> partMap = new HashMap<>();
+
+            for (StreamingPart part : StreamingMultipartFormParts.parse(boundary, body, encoding)) {
+                List<Part> keyParts = partMap.containsKey(part.getFieldName()) ?
+                    partMap.get(part.getFieldName()) :
+                    new ArrayList<>();
+
+                keyParts.add(partInPlace(part, encoding));
                 partMap.put(part.getFieldName(), keyParts);
             }
             return new Parts(partMap);
         } catch (ParseError e) {
-            // stupid... cos 'iterator' doesn't throw exceptions
             if (e.getCause() instanceof IOException) {
                 throw (IOException) e.getCause();
             }
@@ -55,46 +244,244 @@ public class MultipartFormMap {
         }
     }
 
-    private static Part serialisePart(Charset encoding, int writeToDiskThreshold, File temporaryFileDirectory, StreamingPart part, InputStream partInputStream, byte[] bytes) throws IOException {
-        int length = 0;
+    private static Part partInPlace(StreamingPart part, Charset encoding) throws IOException {
+        ByteBuffer contents = sliceOfContents(part);
+        if (contents.hasArray()) {
+            return new InMemoryPart(part, contents.array(), contents.arrayOffset() + contents.position(), contents.remaining(), encoding);
+        }
+        return new ByteBufferPart(part, contents, encoding);
+    }
 
-        while (true) {
-            int count = partInputStream.read(bytes, length, writeToDiskThreshold - length);
-            if (count < 0) {
-                return new InMemoryPart(
-                    part,
-                    storeInMemory(bytes, length, partInputStream), encoding);
+    private static ByteBuffer sliceOfContents(StreamingPart part) throws IOException {
+        ByteBuffer contents = part.readSlice();
+        if (contents == null) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer slice;
+        while ((slice = part.readSlice()) != null) {
+            // only a body that ends without its closing boundary comes in more than one slice
+            ByteBuffer joined = ByteBuffer.allocate(contents.remaining() + slice.remaining());
+            joined.put(contents).put(slice).flip();
+            contents = joined;
+        }
+        return contents;
+    }
+
+    private static Part serialisePart(Charset encoding, int writeToDiskThreshold, SpillFilePool spillFiles, Executor spillWriter, StreamingPart part, InputStream partInputStream) throws IOException {
+        // most heads become in-memory Parts, which keep their chunks, so they aren't borrowed from the pool
+        ChunkedBytes head = new ChunkedBytes(null, MemoryBudget.shared());
+        try {
+            if (head.readFrom(partInputStream, writeToDiskThreshold)) {
+                return storeInMemory(part, head, encoding, partInputStream);
             }
-            length += count;
-            if (length >= writeToDiskThreshold) {
-                return new DiskBackedPart(
-                    part,
-                    writeToDisk(part.fileName, writeToDiskThreshold, temporaryFileDirectory, bytes, length, partInputStream));
+            File file = spillFiles.take();
+            SpillReservation reservation = new SpillReservation(spillFiles);
+            try {
+                if (spillWriter == null) {
+                    writeToDisk(file, reservation, head, partInputStream);
+                } else {
+                    writeToDiskPipelined(file, reservation, spillWriter, head, partInputStream);
+                }
+            } catch (IOException | RuntimeException e) {
+                spillFiles.giveBack(file);
+                reservation.release();
+                throw e;
             }
+            head.release();
+            return new DiskBackedPart(part, file, (int) file.length(), spillFiles);
+        } catch (IOException | RuntimeException e) {
+            head.release();
+            throw e;
         }
     }
 
-    private static byte[] storeInMemory(byte[] bytes, int length, InputStream partInputStream) throws IOException {
-        partInputStream.close();
+    private static Part serialisePartAsync(Charset encoding, int writeToDiskThreshold, SpillFilePool spillFiles, StreamingPart part, InputStream partInputStream,
+                                           List<CompletableFuture<Void>> writes, Consumer<? super DiskBackedPart> partWritten) throws IOException {
+        // most heads become in-memory Parts, which keep their chunks, so they aren't borrowed from the pool
+        ChunkedBytes head = new ChunkedBytes(null, MemoryBudget.shared());
+        try {
+            if (head.readFrom(partInputStream, writeToDiskThreshold)) {
+                return storeInMemory(part, head, encoding, partInputStream);
+            }
+            File tempFile = spillFiles.take();
+            SpillReservation reservation = new SpillReservation(spillFiles);
+            AsyncSpill spill;
+            try {
+                spill = new AsyncSpill(
+                    AsynchronousFileChannel.open(tempFile.toPath(), WRITE, TRUNCATE_EXISTING), PIPELINED_SPILL_CHUNKS, PIPELINED_SPILL_CHUNK_SIZE);
+            } catch (IOException | RuntimeException e) {
+                spillFiles.giveBack(tempFile);
+                throw e;
+            }
+            try {
+                spillChunks(spill, reservation, head, partInputStream);
+            } catch (IOException | RuntimeException e) {
+                // there is no Part to delete the file, so delete it once nothing more will be written to it
+                writes.add(spill.whenWritten().handle((ignored, writeFailure) -> {
+                    spillFiles.giveBack(tempFile);
+                    reservation.release();
+                    return null;
+                }));
+                throw e;
+            }
+            head.release();
+            CompletableFuture<Void> written = spill.finish();
+            DiskBackedPart diskBackedPart = new DiskBackedPart(part, tempFile, (int) spill.length(), spillFiles);
+            writes.add(partWritten == null ? written : written.thenRun(() -> partWritten.accept(diskBackedPart)));
+            try {
+                partInputStream.close();
+            } catch (IOException | RuntimeException e) {
+                // the Part won't be handed out, so close it once it has been written
+                writes.add(written.handle((ignored, writeFailure) -> {
+                    try {
+                        diskBackedPart.close();
+                    } catch (IOException closeFailure) {
+                        e.addSuppressed(closeFailure);
+                    }
+                    return null;
+                }));
+                throw e;
+            }
+            return diskBackedPart;
+        } catch (IOException | RuntimeException e) {
+            head.release();
+            throw e;
+        }
+    }
 
-        byte[] result = new byte[length];
-        System.arraycopy(bytes, 0, result, 0, length);
-        return result;
+    /**
+     * Keeps the chunks the part was read into, as they are.
+     */
+    private static Part storeInMemory(StreamingPart part, ChunkedBytes contents, Charset encoding, InputStream partInputStream) throws IOException {
+        partInputStream.close();
+        return new InMemoryPart(part, contents, encoding);
     }
 
-    private static File writeToDisk(String fileName, int writeToDiskThreshold, File temporaryFileDirectory, byte[] bytes, int length, InputStream partInputStream) throws IOException {
-        File tempFile = File.createTempFile(fileName + "-", ".tmp", temporaryFileDirectory);
-        tempFile.deleteOnExit();
-        OutputStream outputStream = new FileOutputStream(tempFile);
-        outputStream.write(bytes, 0, length);
-        while (true) {
-            int readLength = partInputStream.read(bytes, 0, writeToDiskThreshold);
-            if (readLength < 0) {
-                break;
+    private static void writeToDisk(File tempFile, SpillReservation reservation, ChunkedBytes head, InputStream partInputStream) throws IOException {
+        // the threshold can be tiny, so write in chunks big enough to be worth a write, from a direct buffer so the
+        // channel doesn't copy them into one of its own
+        ByteBuffer chunk = BufferPool.shared().borrowDirect(SPILL_CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), WRITE, TRUNCATE_EXISTING)) {
+            for (ByteBuffer headChunk : head.buffers()) {
+                while (putSome(chunk, headChunk)) {
+                    writeChunk(channel, reservation, chunk);
+                }
+            }
+            while (fill(chunk, partInputStream)) {
+                writeChunk(channel, reservation, chunk);
             }
-            outputStream.write(bytes, 0, readLength);
+            writeChunk(channel, reservation, chunk);
+        } finally {
+            BufferPool.shared().giveBack(chunk);
         }
         partInputStream.close();
-        return tempFile;
+    }
+
+    private static void writeToDiskPipelined(File tempFile, SpillReservation reservation, Executor spillWriter, ChunkedBytes head, InputStream partInputStream) throws IOException {
+        PipelinedSpill spill = PipelinedSpill.start(
+            FileChannel.open(tempFile.toPath(), WRITE, TRUNCATE_EXISTING), spillWriter, PIPELINED_SPILL_CHUNKS, PIPELINED_SPILL_CHUNK_SIZE);
+        spillChunks(spill, reservation, head, partInputStream);
+        spill.finish();
+        partInputStream.close();
+    }
+
+    /**
+     * Hands <code>head</code> and then the rest of the part to <code>spill</code>, reserving each chunk first.
+     */
+    private static void spillChunks(ChunkedSpill spill, SpillReservation reservation, ChunkedBytes head, InputStream partInputStream) throws IOException {
+        try {
+            ByteBuffer chunk = spill.emptyChunk();
+            for (ByteBuffer headChunk : head.buffers()) {
+                while (putSome(chunk, headChunk)) {
+                    reservation.reserve(chunk);
+                    spill.queue(chunk);
+                    chunk = spill.emptyChunk();
+                }
+            }
+            while (fill(chunk, partInputStream)) {
+                reservation.reserve(chunk);
+                spill.queue(chunk);
+                chunk = spill.emptyChunk();
+            }
+            reservation.reserve(chunk);
+            spill.queue(chunk);
+        } catch (IOException | RuntimeException e) {
+            spill.abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies as much of <code>from</code> into <code>chunk</code> as fits.
+     *
+     * @return true if <code>chunk</code> is full and <code>from</code> may have more in it
+     */
+    private static boolean putSome(ByteBuffer chunk, ByteBuffer from) {
+        if (from.remaining() <= chunk.remaining()) {
+            chunk.put(from);
+            return false;
+        }
+        ByteBuffer some = from.duplicate();
+        some.limit(some.position() + chunk.remaining());
+        chunk.put(some);
+        from.position(some.position());
+        return true;
+    }
+
+    /**
+     * Reads from <code>partInputStream</code> until <code>chunk</code> is full.
+     *
+     * @return false if the part ended first
+     */
+    private static boolean fill(ByteBuffer chunk, InputStream partInputStream) throws IOException {
+        while (chunk.hasRemaining()) {
+            int count = partInputStream instanceof PartInputStream
+                ? ((PartInputStream) partInputStream).read(chunk)
+                : StreamUtil.read(partInputStream, chunk);
+            if (count < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeChunk(FileChannel channel, SpillReservation reservation, ByteBuffer chunk) throws IOException {
+        reservation.reserve(chunk);
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * The disk reserved for one Part's file so far, to be released if the file is abandoned. Once the Part is made,
+     * it releases them itself.
+     */
+    private static class SpillReservation {
+        private final SpillFilePool spillFiles;
+        private long bytes = 0;
+
+        SpillReservation(SpillFilePool spillFiles) {
+            this.spillFiles = spillFiles;
+        }
+
+        /**
+         * Reserves the bytes put in <code>chunk</code>, before it is flipped to be written.
+         *
+         * @throws StreamTooLongException if the part would be longer than a Part's length can hold
+         */
+        void reserve(ByteBuffer chunk) throws IOException {
+            if (bytes + chunk.position() > Integer.MAX_VALUE) {
+                throw new StreamTooLongException("Part contents was longer than " + Integer.MAX_VALUE + " bytes");
+            }
+            spillFiles.reserve(chunk.position());
+            bytes += chunk.position();
+        }
+
+        void release() {
+            spillFiles.release(bytes);
+            bytes = 0;
+        }
     }
 }
@@ -0,0 +1,260 @@
+package org.tiestvilee.multipartform;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.tiestvilee.multipartform.exceptions.ParseError;
+import org.tiestvilee.multipartform.part.StreamingPart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the parts of a form as a Reactive Streams <code>Publisher</code>. Each part's contents are published
+ * by <code>contents(part)</code>. On Java 9+ <code>org.reactivestreams.FlowAdapters</code> turns either into a
+ * <code>java.util.concurrent.Flow.Publisher</code>.
+ * <br/>
+ * Nothing is read ahead: the parts are parsed, and their contents read, only as subscribers ask for them, on the
+ * thread that asks. With a blocking source <code>request(n)</code> blocks while it reads, but no thread waits
+ * in between. The next part is published once the contents of the previous one have completed or been
+ * cancelled, so subscribe to (or cancel) the contents of each part to get the next one.
+ * <br/>
+ * Each ByteBuffer of contents is a copy the subscriber can keep, of at most the parser's buffer size, so the
+ * memory held for a part is bounded by how much has been requested.
+ */
+public class MultipartFormPublisher implements Publisher<StreamingPart> {
+    private final Iterable<StreamingPart> parts;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    public MultipartFormPublisher(Iterable<StreamingPart> parts) {
+        this.parts = parts;
+    }
+
+    @Override public void subscribe(Subscriber<? super StreamingPart> subscriber) {
+        if (subscribed.getAndSet(true)) {
+            rejectSubscriber(subscriber, "A form can only be published to one subscriber");
+            return;
+        }
+        new PartsSubscription(subscriber, parts.iterator()).start();
+    }
+
+    /**
+     * @param part a part published by a <code>MultipartFormPublisher</code>
+     * @return a <code>Publisher</code> of the contents of the part, which can be subscribed to once
+     */
+    public static Publisher<ByteBuffer> contents(StreamingPart part) {
+        if (!(part instanceof PublishedPart)) {
+            throw new IllegalArgumentException("Part was not published by a MultipartFormPublisher");
+        }
+        return (PublishedPart) part;
+    }
+
+    private static void rejectSubscriber(Subscriber<?> subscriber, String reason) {
+        subscriber.onSubscribe(new Subscription() {
+            @Override public void request(long n) {
+            }
+
+            @Override public void cancel() {
+            }
+        });
+        subscriber.onError(new IllegalStateException(reason));
+    }
+
+    private static long addDemand(AtomicLong demand, long n) {
+        while (true) {
+            long current = demand.get();
+            long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (demand.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private static class PartsSubscription implements Subscription {
+        private final Subscriber<? super StreamingPart> subscriber;
+        private final Iterator<StreamingPart> iterator;
+        private final AtomicLong demand = new AtomicLong(0);
+        // only one thread at a time parses and signals; others leave their work to it
+        private final AtomicInteger workInProgress = new AtomicInteger(0);
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest = null;
+        private boolean done = false;
+        private PublishedPart current = null;
+
+        PartsSubscription(Subscriber<? super StreamingPart> subscriber, Iterator<StreamingPart> iterator) {
+            this.subscriber = subscriber;
+            this.iterator = iterator;
+        }
+
+        void start() {
+            subscriber.onSubscribe(this);
+        }
+
+        @Override public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Must request a positive number of parts, not " + n);
+            } else {
+                addDemand(demand, n);
+            }
+            drain();
+        }
+
+        @Override public void cancel() {
+            cancelled = true;
+        }
+
+        void drain() {
+            if (workInProgress.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                emit();
+                missed = workInProgress.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            while (!done) {
+                if (invalidRequest != null) {
+                    fail(invalidRequest);
+                    return;
+                }
+                if (current != null) {
+                    if (!current.emitContents()) {
+                        return;
+                    }
+                    current = null;
+                }
+                if (cancelled || demand.get() == 0) {
+                    return;
+                }
+
+                StreamingPart part;
+                try {
+                    if (!iterator.hasNext()) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    part = iterator.next();
+                } catch (ParseError e) {
+                    fail(e.getCause() instanceof IOException ? e.getCause() : e);
+                    return;
+                }
+                current = new PublishedPart(part, this);
+                demand.decrementAndGet();
+                subscriber.onNext(current);
+            }
+        }
+
+        void fail(Throwable e) {
+            done = true;
+            if (current != null) {
+                current.fail(e);
+            }
+            if (!cancelled) {
+                subscriber.onError(e);
+            }
+        }
+    }
+
+    private static class PublishedPart extends StreamingPart implements Publisher<ByteBuffer>, Subscription {
+        private final StreamingPart part;
+        private final PartsSubscription parts;
+        private final AtomicBoolean subscribed = new AtomicBoolean(false);
+        private final AtomicLong demand = new AtomicLong(0);
+        private volatile Subscriber<? super ByteBuffer> subscriber = null;
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest = null;
+        private boolean finished = false;
+
+        PublishedPart(StreamingPart part, PartsSubscription parts) {
+            super(part.fieldName, part.formField, part.contentType, part.fileName, part.inputStream, part.headers);
+            this.part = part;
+            this.parts = parts;
+        }
+
+        @Override public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            if (subscribed.getAndSet(true)) {
+                rejectSubscriber(subscriber, "The contents of a part can only be published to one subscriber");
+                return;
+            }
+            subscriber.onSubscribe(this);
+            this.subscriber = subscriber;
+            parts.drain();
+        }
+
+        @Override public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Must request a positive number of buffers, not " + n);
+            } else {
+                addDemand(demand, n);
+            }
+            parts.drain();
+        }
+
+        @Override public void cancel() {
+            cancelled = true;
+            parts.drain();
+        }
+
+        /**
+         * Called by the parts subscription, one thread at a time.
+         *
+         * @return true when the contents are finished with and the next part can be published
+         */
+        boolean emitContents() {
+            while (!finished) {
+                if (cancelled) {
+                    finished = true;
+                    try {
+                        part.inputStream.close(); // skip to the next part
+                    } catch (IOException | ParseError e) {
+                        parts.fail(e);
+                    }
+                    return true;
+                }
+                if (invalidRequest != null) {
+                    finished = true;
+                    subscriber.onError(invalidRequest);
+                    return true;
+                }
+                if (subscriber == null || demand.get() == 0) {
+                    return false;
+                }
+
+                ByteBuffer slice;
+                try {
+                    slice = part.readSlice();
+                } catch (IOException | ParseError e) {
+                    parts.fail(e instanceof ParseError && e.getCause() instanceof IOException ? e.getCause() : e);
+                    return false;
+                }
+                if (slice == null) {
+                    finished = true;
+                    subscriber.onComplete();
+                    return true;
+                }
+                ByteBuffer copy = ByteBuffer.allocate(slice.remaining());
+                copy.put(slice).flip();
+                demand.decrementAndGet();
+                subscriber.onNext(copy);
+            }
+            return true;
+        }
+
+        void fail(Throwable e) {
+            if (!finished) {
+                finished = true;
+                if (subscriber != null && !cancelled) {
+                    subscriber.onError(e);
+                }
+            }
+        }
+    }
+}
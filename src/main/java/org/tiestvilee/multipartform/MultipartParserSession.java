@@ -0,0 +1,95 @@
+package org.tiestvilee.multipartform;
+
+import org.tiestvilee.multipartform.part.StreamingPart;
+
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A parser that can be reused for one form after another, keeping its ring buffer, header scratch space and
+ * (while the boundary stays the same) boundary search, so parsing a form allocates little more than its parts.
+ * A worker thread can keep one, for example in a <code>ThreadLocal</code>.
+ * <br/>
+ * A session belongs to one form at a time: <code>reset</code> starts a form and <code>release</code> ends it.
+ * Calling <code>reset</code> again before <code>release</code> throws <code>IllegalStateException</code>, so a
+ * session shared by mistake fails rather than mixing up two requests. Once a form is released, its iterator
+ * throws <code>IllegalStateException</code> and its parts throw <code>AlreadyClosedException</code>, as their
+ * bytes are gone. A session is not thread safe, so only one thread should use it during a form.
+ */
+public class MultipartParserSession {
+    private static final int DEFAULT_BUFSIZE = 4096;
+
+    private final StreamingMultipartFormParts parser;
+    private final AtomicBoolean inUse = new AtomicBoolean(false);
+
+    public MultipartParserSession(Charset encoding) {
+        this(encoding, DEFAULT_BUFSIZE);
+    }
+
+    /**
+     * @param encoding of the bodies of the HTTP requests
+     * @param bufSize  the smallest size of the ring buffer, as for <code>TokenBoundedInputStream</code>
+     */
+    public MultipartParserSession(Charset encoding, int bufSize) {
+        this(encoding, bufSize, false);
+    }
+
+    /**
+     * @param encoding     of the bodies of the HTTP requests
+     * @param bufSize      the smallest size of the ring buffer, as for <code>TokenBoundedInputStream</code>
+     * @param directBuffer whether the ring buffer is a direct <code>ByteBuffer</code>, off the heap, which suits
+     *                     many sessions with large buffers, and reading from socket channels
+     */
+    public MultipartParserSession(Charset encoding, int bufSize, boolean directBuffer) {
+        this.parser = new StreamingMultipartFormParts(encoding, bufSize, directBuffer);
+    }
+
+    /**
+     * Starts parsing a form, as <code>StreamingMultipartFormParts.parse(boundary, inputStream, encoding)</code>.
+     *
+     * @throws IllegalStateException if the last form hasn't been released
+     */
+    public Iterable<StreamingPart> reset(byte[] boundary, InputStream inputStream) {
+        return reset(boundary, inputStream, -1);
+    }
+
+    /**
+     * @param maxStreamLength maximum length of the body, or -1 for no limit
+     * @throws IllegalStateException if the last form hasn't been released
+     */
+    public Iterable<StreamingPart> reset(byte[] boundary, InputStream inputStream, int maxStreamLength) {
+        acquire();
+        parser.reset(boundary, inputStream, maxStreamLength);
+        return parser;
+    }
+
+    /**
+     * @param maxStreamLength maximum length of the body, or -1 for no limit
+     * @throws IllegalStateException if the last form hasn't been released
+     */
+    public Iterable<StreamingPart> reset(byte[] boundary, ReadableByteChannel channel, int maxStreamLength) {
+        acquire();
+        parser.reset(boundary, channel, maxStreamLength);
+        return parser;
+    }
+
+    /**
+     * Ends the current form, so the session can be reset for another. Doesn't close the stream.
+     */
+    public void release() {
+        parser.release();
+        inUse.set(false);
+    }
+
+    boolean searchingLinearly() {
+        return parser.searchingLinearly();
+    }
+
+    private void acquire() {
+        if (!inUse.compareAndSet(false, true)) {
+            throw new IllegalStateException("Session is still parsing a form; release() it before the next one");
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package org.tiestvilee.multipartform;
+
+import org.tiestvilee.multipartform.exceptions.StreamTooLongException;
+import org.tiestvilee.multipartform.exceptions.TokenNotFoundException;
+import org.tiestvilee.multipartform.part.PartMetaData;
+import org.tiestvilee.multipartform.stream.TokenSearch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import static org.tiestvilee.multipartform.StreamingMultipartFormParts.*;
+
+/**
+ * Parses a <code>multipart/form-data</code> body that is pushed to it a chunk at a time, for servers that read
+ * request bodies from non-blocking channels or event loops. It runs the same state machine as
+ * <code>StreamingMultipartFormParts</code>, but reports each part to a <code>Listener</code> instead of blocking
+ * for more input. Boundaries and header lines can be split across any number of chunks.
+ * <br/>
+ * A parser is for one body, and is not thread safe.
+ */
+public class MultipartPushParser {
+    // how much of the next chunk is joined to bytes left over from the last one, to finish what they started
+    private static final int STITCH_SIZE = 1024;
+
+    public interface Listener {
+        /**
+         * A part has started. Its contents follow in calls to <code>partData</code>.
+         */
+        void partStart(PartMetaData part) throws IOException;
+
+        /**
+         * Some contents of the current part, positioned over the bytes. The buffer is a read-only view of a
+         * chunk, so it is only valid until this call returns.
+         */
+        void partData(ByteBuffer data) throws IOException;
+
+        /**
+         * All the contents of the current part have been passed to <code>partData</code>.
+         */
+        void partEnd() throws IOException;
+    }
+
+    private final Listener listener;
+    private final Charset encoding;
+    private final int maxStreamLength;
+    private final HeaderLineParser headerLineParser;
+    // reused for every header line
+    private final byte[] headerLine = new byte[HEADER_SIZE_MAX];
+
+    private byte[] boundary;
+    private TokenSearch boundaryWithPrefix;
+    private PushParserState state;
+    private String mixedName = null;
+    private byte[] oldBoundary = null;
+    private TokenSearch oldBoundaryWithPrefix;
+
+    private PartHeaders headers;
+    private String previousHeaderName;
+    private int headerBytes;
+    private long streamLength = 0;
+
+    // bytes at the end of the last chunk that can't be dealt with until more arrive
+    private byte[] pending = new byte[STITCH_SIZE * 2];
+    private int pendingLength = 0;
+
+    public MultipartPushParser(byte[] boundary, Charset encoding, Listener listener) {
+        this(boundary, encoding, -1, listener);
+    }
+
+    public MultipartPushParser(byte[] boundary, Charset encoding, int maxStreamLength, Listener listener) {
+        this.boundary = prependBoundaryWithStreamTerminator(boundary);
+        this.encoding = encoding;
+        this.maxStreamLength = maxStreamLength;
+        this.listener = listener;
+        this.headerLineParser = new HeaderLineParser(encoding);
+
+        this.boundaryWithPrefix = addPrefixToBoundary(this.boundary);
+
+        state = PushParserState.findBoundary;
+    }
+
+    /**
+     * Parses as much of <code>chunk</code> as it can, calling the listener as parts start, continue and end. Any
+     * bytes that can't be dealt with yet (the start of a boundary or of a header line) are kept until the next
+     * chunk. The whole of <code>chunk</code> is consumed, so its buffer can be reused when this returns.
+     *
+     * @param chunk the next bytes of the body, from its position to its limit
+     * @throws IOException if the body is malformed or too long, or the listener throws
+     */
+    public void feed(ByteBuffer chunk) throws IOException {
+        if (state == PushParserState.error) {
+            throw new IllegalStateException("Cannot feed a parser that has already failed");
+        }
+        streamLength += chunk.remaining();
+        try {
+            if (maxStreamLength > -1 && streamLength > maxStreamLength) {
+                throw new StreamTooLongException("Form contents was longer than " + maxStreamLength + " bytes");
+            }
+
+            while (pendingLength > 0 && chunk.hasRemaining()) {
+                int leftOver = pendingLength;
+                int take = Math.min(chunk.remaining(), STITCH_SIZE);
+                ensurePendingCapacity(pendingLength + take);
+                chunk.duplicate().get(pending, pendingLength, take);
+                pendingLength += take;
+
+                ByteBuffer stitched = ByteBuffer.wrap(pending, 0, pendingLength);
+                process(stitched);
+                if (stitched.position() >= leftOver) {
+                    // what is still undecided came from the chunk, so carry on from there
+                    chunk.position(chunk.position() + stitched.position() - leftOver);
+                    pendingLength = 0;
+                } else {
+                    chunk.position(chunk.position() + take);
+                    keepPending(stitched);
+                }
+            }
+
+            if (chunk.hasRemaining()) {
+                process(chunk);
+                keepPending(chunk);
+            }
+        } catch (IOException | RuntimeException e) {
+            state = PushParserState.error;
+            throw e;
+        }
+    }
+
+    /**
+     * Tells the parser there are no more chunks.
+     *
+     * @throws TokenNotFoundException if the body ended before the end of the form
+     */
+    public void end() throws IOException {
+        if (state != PushParserState.eos) {
+            state = PushParserState.error;
+            throw new TokenNotFoundException("Reached end of stream before the end of the form");
+        }
+    }
+
+    /**
+     * @return true once the closing boundary has been parsed. Anything after it is ignored.
+     */
+    public boolean isComplete() {
+        return state == PushParserState.eos;
+    }
+
+    private void process(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            boolean progressed;
+            switch (state) {
+                case findBoundary:
+                    progressed = findBoundary(in);
+                    break;
+                case boundaryFound:
+                    progressed = boundaryFound(in);
+                    break;
+                case header:
+                    progressed = parseHeaderLine(in);
+                    break;
+                case contents:
+                    progressed = parseContents(in);
+                    break;
+                default:
+                    in.position(in.limit());
+                    progressed = true;
+            }
+            if (!progressed) {
+                return;
+            }
+        }
+    }
+
+    private boolean findBoundary(ByteBuffer in) throws IOException {
+        int matched = startsWith(in, 0, boundary);
+        if (matched < 0) {
+            throw new TokenNotFoundException("Boundary not found <<" + new String(boundary, encoding) + ">>");
+        }
+        if (matched < boundary.length) {
+            return false;
+        }
+        in.position(in.position() + boundary.length);
+        state = PushParserState.boundaryFound;
+        return true;
+    }
+
+    private boolean boundaryFound(ByteBuffer in) throws IOException {
+        int terminator = startsWith(in, 0, STREAM_TERMINATOR);
+        if (terminator == STREAM_TERMINATOR.length) {
+            int separator = startsWith(in, STREAM_TERMINATOR.length, FIELD_SEPARATOR);
+            if (separator < 0) {
+                throw new TokenNotFoundException("Stream terminator must be followed by field separator, but didn't find it");
+            }
+            if (separator < FIELD_SEPARATOR.length) {
+                return false;
+            }
+            in.position(in.position() + STREAM_TERMINATOR.length + FIELD_SEPARATOR.length);
+            if (mixedName != null) {
+                boundary = oldBoundary;
+                boundaryWithPrefix = oldBoundaryWithPrefix;
+                mixedName = null;
+                state = PushParserState.findBoundary;
+            } else {
+                state = PushParserState.eos;
+            }
+            return true;
+        }
+        if (terminator > 0) {
+            return false;
+        }
+
+        int separator = startsWith(in, 0, FIELD_SEPARATOR);
+        if (separator < 0) {
+            throw new TokenNotFoundException("Boundary must be followed by field separator, but didn't find it");
+        }
+        if (separator < FIELD_SEPARATOR.length) {
+            return false;
+        }
+        in.position(in.position() + FIELD_SEPARATOR.length);
+        headers = headerLineParser.newHeaders();
+        previousHeaderName = null;
+        headerBytes = 0;
+        state = PushParserState.header;
+        return true;
+    }
+
+    private boolean parseHeaderLine(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int allowance = HEADER_SIZE_MAX - headerBytes;
+        int end = (int) Math.min(in.limit(), (long) start + allowance);
+        int lineEnd = -1;
+        for (int i = start; i < end - 1; i++) {
+            if (in.get(i) == CR && in.get(i + 1) == LF) {
+                lineEnd = i;
+                break;
+            }
+        }
+        if (lineEnd < 0) {
+            if (end - start >= allowance) {
+                throw new TokenNotFoundException("Didn't find end of Header section within " + HEADER_SIZE_MAX + " bytes");
+            }
+            return false;
+        }
+
+        int length = lineEnd - start;
+        in.get(headerLine, 0, length);
+        in.position(lineEnd + FIELD_SEPARATOR.length);
+        headerBytes += length + FIELD_SEPARATOR.length;
+
+        if (length == 0) {
+            headersComplete();
+        } else {
+            previousHeaderName = headerLineParser.addHeaderLine(headers, previousHeaderName, headerLine, length);
+        }
+        return true;
+    }
+
+    private void headersComplete() throws IOException {
+        String contentType = headers.get(PartHeaders.CONTENT_TYPE);
+        HeaderParameters contentDisposition = HeaderParameters.parse(headers.get(PartHeaders.CONTENT_DISPOSITION));
+        if (contentType != null && contentType.startsWith("multipart/mixed")) {
+            HeaderParameters contentTypeParams = HeaderParameters.parse(contentType);
+
+            mixedName = trim(contentDisposition.name);
+
+            oldBoundary = boundary;
+            oldBoundaryWithPrefix = boundaryWithPrefix;
+            boundary = (new String(STREAM_TERMINATOR, encoding) + trim(contentTypeParams.boundary)).getBytes(encoding);
+            boundaryWithPrefix = addPrefixToBoundary(this.boundary);
+
+            state = PushParserState.findBoundary;
+        } else {
+            String fieldName = contentDisposition.attachment ? mixedName : trim(contentDisposition.name);
+
+            state = PushParserState.contents;
+            listener.partStart(new PushedPart(
+                fieldName,
+                !contentDisposition.hasFilename,
+                contentType,
+                contentDisposition.fileName(),
+                headers));
+        }
+    }
+
+    private boolean parseContents(ByteBuffer in) throws IOException {
+        int from = in.position();
+        // positions are indexes in this chunk, so nothing remembered from the last one applies
+        boundaryWithPrefix.reset();
+        int candidate = (int) boundaryWithPrefix.firstCandidate(in, -1L, from, in.limit());
+        if (candidate > from) {
+            ByteBuffer data = in.asReadOnlyBuffer();
+            data.limit(candidate);
+            data.position(from);
+            listener.partData(data);
+        }
+
+        // the candidate is either the boundary, or too near the end of the chunk to tell
+        int tokenLength = boundaryWithPrefix.token().length;
+        if (candidate + tokenLength > in.limit()) {
+            in.position(candidate);
+            return false;
+        }
+        in.position(candidate + tokenLength);
+        state = PushParserState.boundaryFound;
+        listener.partEnd();
+        return true;
+    }
+
+    /**
+     * @return how many bytes of <code>token</code> match from <code>offset</code> bytes after the position of
+     * <code>in</code> (fewer than its length if <code>in</code> runs out first), or -1 if a byte doesn't match
+     */
+    private static int startsWith(ByteBuffer in, int offset, byte[] token) {
+        int start = in.position() + offset;
+        int available = Math.min(token.length, in.limit() - start);
+        for (int i = 0; i < available; i++) {
+            if (in.get(start + i) != token[i]) {
+                return -1;
+            }
+        }
+        return available;
+    }
+
+    private void keepPending(ByteBuffer in) {
+        int remaining = in.remaining();
+        ensurePendingCapacity(remaining);
+        // in may be a view of pending itself, which get() copies correctly as the bytes only move down
+        in.get(pending, 0, remaining);
+        pendingLength = remaining;
+    }
+
+    private void ensurePendingCapacity(int capacity) {
+        if (capacity > pending.length) {
+            byte[] bigger = new byte[Math.max(capacity, pending.length * 2)];
+            System.arraycopy(pending, 0, bigger, 0, pendingLength);
+            pending = bigger;
+        }
+    }
+
+    private static class PushedPart extends PartMetaData {
+        PushedPart(String fieldName, boolean formField, String contentType, String fileName, Map<String, String> headers) {
+            super(fieldName, formField, contentType, fileName, headers);
+        }
+    }
+
+    private enum PushParserState {
+        findBoundary, boundaryFound, header, contents, eos, error
+    }
+}
@@ -0,0 +1,208 @@
+package org.tiestvilee.multipartform;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The headers of a part. Names are looked up ignoring case, so <code>get("content-type")</code> finds a
+ * <code>Content-Type</code> header, and a repeated header replaces the earlier one whatever its case.
+ * <br/>
+ * Names and values are kept in parallel arrays rather than hashed entries, as a part only has a few. Well known
+ * names are shared constants, spelt as in <code>KNOWN_NAMES</code>. Values parsed from the form are kept as
+ * bytes, and only decoded when they are first read.
+ */
+final class PartHeaders extends AbstractMap<String, String> {
+    static final String CONTENT_DISPOSITION = "Content-Disposition";
+    static final String CONTENT_TYPE = "Content-Type";
+    static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+    static final String CONTENT_LENGTH = "Content-Length";
+    private static final String[] KNOWN_NAMES = {CONTENT_DISPOSITION, CONTENT_TYPE, CONTENT_TRANSFER_ENCODING, CONTENT_LENGTH};
+    private static final byte[] FOLD_SEPARATOR = {';', ' '};
+
+    private final Charset encoding;
+    private String[] names = new String[2];
+    // decoded values; null until a raw value is first read
+    private String[] values = new String[2];
+    // where each raw value is in bytes, or -1 for a value that was put as a String
+    private int[] valueStarts = new int[2];
+    private int[] valueEnds = new int[2];
+    private byte[] bytes = new byte[64];
+    private int bytesLength = 0;
+    private int size = 0;
+
+    /**
+     * @param encoding the charset of the raw values, which must encode ASCII as ASCII
+     */
+    PartHeaders(Charset encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Adds (or replaces) the header named by <code>line[nameFrom..nameTo)</code>, with the raw value
+     * <code>line[valueFrom..valueTo)</code>.
+     *
+     * @return the name of the header
+     */
+    String add(byte[] line, int nameFrom, int nameTo, int valueFrom, int valueTo) {
+        String name = knownName(line, nameFrom, nameTo);
+        if (name == null) {
+            name = decode(line, nameFrom, nameTo);
+        }
+        int index = indexOrAdd(name);
+        names[index] = name;
+        values[index] = null;
+        valueStarts[index] = bytesLength;
+        append(line, valueFrom, valueTo - valueFrom);
+        valueEnds[index] = bytesLength;
+        return name;
+    }
+
+    /**
+     * Continues the value of header <code>name</code> with <code>"; "</code> and the raw
+     * <code>line[from..to)</code>, for a folded header line.
+     */
+    void fold(String name, byte[] line, int from, int to) {
+        int index = indexOf(name);
+        if (index < 0 || valueStarts[index] < 0) {
+            put(name, get(name) + "; " + decode(line, from, to));
+            return;
+        }
+        if (valueEnds[index] != bytesLength) {
+            // move the value to the end of the bytes so it can grow
+            int start = bytesLength;
+            append(bytes, valueStarts[index], valueEnds[index] - valueStarts[index]);
+            valueStarts[index] = start;
+        }
+        append(FOLD_SEPARATOR, 0, FOLD_SEPARATOR.length);
+        append(line, from, to - from);
+        valueEnds[index] = bytesLength;
+        values[index] = null;
+    }
+
+    @Override public String put(String name, String value) {
+        int index = indexOf(name);
+        String previous = index < 0 ? null : valueAt(index);
+        if (index < 0) {
+            index = indexOrAdd(name);
+        }
+        names[index] = name;
+        values[index] = value;
+        valueStarts[index] = -1;
+        return previous;
+    }
+
+    @Override public String get(Object name) {
+        int index = indexOf(name);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    @Override public boolean containsKey(Object name) {
+        return indexOf(name) >= 0;
+    }
+
+    @Override public int size() {
+        return size;
+    }
+
+    @Override public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int index = 0;
+
+                    @Override public boolean hasNext() {
+                        return index < size;
+                    }
+
+                    @Override public Entry<String, String> next() {
+                        if (index >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry = new SimpleImmutableEntry<>(names[index], valueAt(index));
+                        index++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override public int size() {
+                return size;
+            }
+        };
+    }
+
+    private String valueAt(int index) {
+        if (values[index] == null && valueStarts[index] >= 0) {
+            values[index] = decode(bytes, valueStarts[index], valueEnds[index]);
+        }
+        return values[index];
+    }
+
+    private int indexOf(Object name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i] == name || (name instanceof String && ((String) name).equalsIgnoreCase(names[i]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOrAdd(String name) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            return index;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            valueStarts = Arrays.copyOf(valueStarts, size * 2);
+            valueEnds = Arrays.copyOf(valueEnds, size * 2);
+        }
+        return size++;
+    }
+
+    private void append(byte[] source, int from, int length) {
+        if (bytesLength + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytesLength + length, bytes.length * 2));
+        }
+        System.arraycopy(source, from, bytes, bytesLength, length);
+        bytesLength += length;
+    }
+
+    private String decode(byte[] source, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (source[i] < 0) {
+                return new String(source, from, to - from, encoding);
+            }
+        }
+        // ASCII, which every charset we are given encodes as itself
+        return new String(source, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String knownName(byte[] line, int from, int to) {
+        for (String known : KNOWN_NAMES) {
+            if (to - from == known.length() && equalsIgnoreCase(known, line, from)) {
+                return known;
+            }
+        }
+        return null;
+    }
+
+    private static boolean equalsIgnoreCase(String known, byte[] line, int from) {
+        for (int i = 0; i < known.length(); i++) {
+            char c = known.charAt(i);
+            byte b = line[from + i];
+            // ASCII letters differ between cases by 0x20
+            if (b != c && !(Character.isLetter(c) && (b | 0x20) == (c | 0x20))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
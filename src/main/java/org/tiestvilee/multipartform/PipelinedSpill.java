@@ -0,0 +1,167 @@
+package org.tiestvilee.multipartform;
+
+import org.tiestvilee.multipartform.stream.BufferPool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes a part to disk on another thread while the parsing thread carries on reading it. The parsing thread fills
+ * chunks and queues them; the writer writes them in order and hands them back to be filled again. As there are only
+ * a few chunks, a slow disk holds the parsing back rather than filling memory. The chunks are direct buffers from
+ * the pool, so the channel writes them as they are.
+ * <br/>
+ * The writer closes the channel when it has written everything, and <code>finish()</code> waits for that, so the
+ * part is complete on disk when it returns. <code>abandon()</code> waits for it too, so nothing more is written to
+ * the file once it returns, and the file can be given to someone else.
+ */
+class PipelinedSpill implements ChunkedSpill, Runnable {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final WritableByteChannel channel;
+    private final BlockingQueue<ByteBuffer> empty;
+    private final BlockingQueue<ByteBuffer> full;
+    private final CountDownLatch written = new CountDownLatch(1);
+    private volatile IOException failure;
+    private volatile boolean abandoned;
+
+    /**
+     * Starts a writer for <code>channel</code> on <code>executor</code>, which must run it on another thread.
+     */
+    static PipelinedSpill start(WritableByteChannel channel, Executor executor, int chunks, int chunkSize) throws IOException {
+        PipelinedSpill spill = new PipelinedSpill(channel, chunks, chunkSize);
+        try {
+            executor.execute(spill);
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return spill;
+    }
+
+    private PipelinedSpill(WritableByteChannel channel, int chunks, int chunkSize) {
+        this.channel = channel;
+        this.empty = new ArrayBlockingQueue<>(chunks + 1);
+        this.full = new ArrayBlockingQueue<>(chunks + 1);
+        for (int i = 0; i < chunks; i++) {
+            empty.add(BufferPool.shared().borrowDirect(chunkSize));
+        }
+    }
+
+    @Override public ByteBuffer emptyChunk() throws IOException {
+        try {
+            ByteBuffer chunk = empty.take();
+            checkFailure();
+            return chunk;
+        } catch (InterruptedException e) {
+            abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write to disk");
+        }
+    }
+
+    @Override public void queue(ByteBuffer chunk) throws IOException {
+        checkFailure();
+        chunk.flip();
+        full.add(chunk);
+    }
+
+    /**
+     * Waits for everything queued to be written and the channel to be closed.
+     *
+     * @throws IOException if the writer failed
+     */
+    void finish() throws IOException {
+        full.add(END);
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write to disk to finish");
+        }
+        giveBackChunks();
+        checkFailure();
+    }
+
+    /**
+     * Stops the writer, and waits for it to close the channel, even if interrupted.
+     */
+    @Override public void abandon() {
+        if (abandoned) {
+            return;
+        }
+        abandoned = true;
+        full.offer(END);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                written.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        giveBackChunks();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void giveBackChunks() {
+        ByteBuffer chunk;
+        while ((chunk = empty.poll()) != null) {
+            if (chunk != END) {
+                BufferPool.shared().giveBack(chunk);
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to write part to disk", failure);
+        }
+    }
+
+    @Override public void run() {
+        try {
+            while (true) {
+                ByteBuffer chunk = full.take();
+                if (chunk == END) {
+                    break;
+                }
+                if (failure == null && !abandoned) {
+                    try {
+                        while (chunk.hasRemaining()) {
+                            channel.write(chunk);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                // after a failure keep handing chunks back, so the parsing thread isn't left waiting
+                chunk.clear();
+                empty.add(chunk);
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Writer was interrupted");
+            Thread.currentThread().interrupt();
+            empty.offer(END); // wakes the parsing thread, to find the failure
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            written.countDown();
+        }
+    }
+}
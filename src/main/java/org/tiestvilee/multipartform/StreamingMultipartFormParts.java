@@ -1,19 +1,27 @@
 package org.tiestvilee.multipartform;
 
-import org.apache.commons.fileupload.util.ParameterParser;
 import org.tiestvilee.multipartform.exceptions.AlreadyClosedException;
 import org.tiestvilee.multipartform.exceptions.ParseError;
 import org.tiestvilee.multipartform.exceptions.TokenNotFoundException;
+import org.tiestvilee.multipartform.part.PartMetaData;
 import org.tiestvilee.multipartform.part.StreamingPart;
+import org.tiestvilee.multipartform.stream.GuardedTokenSearch;
+import org.tiestvilee.multipartform.stream.PartInputStream;
 import org.tiestvilee.multipartform.stream.TokenBoundedInputStream;
+import org.tiestvilee.multipartform.stream.TokenSearch;
+import org.tiestvilee.multipartform.stream.TokenSearches;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.function.Predicate;
 
 /**
  * <a href="http://www.ietf.org/rfc/rfc1867.txt">RFC 1867</a>
@@ -56,15 +64,26 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
 
     private final TokenBoundedInputStream inputStream;
     private final Charset encoding;
-    private final Iterator<StreamingPart> iterator;
+    private Iterator<StreamingPart> iterator;
+    private final HeaderLineParser headerLineParser;
+    // a session keeps its ring buffer for the next form, otherwise it goes back to the pool when the form is done
+    private final boolean keepsBuffer;
+    // reused for every header line
+    private final byte[] headerLine = new byte[HEADER_SIZE_MAX];
 
     private byte[] boundary;
-    private byte[] boundaryWithPrefix;
+    private TokenSearch boundaryWithPrefix;
     private MultipartFormStreamState state;
     // yes yes, I should use a stack or something for this
     private String mixedName = null;
     private byte[] oldBoundary = null;
-    private byte[] oldBoundaryWithPrefix;
+    private TokenSearch oldBoundaryWithPrefix;
+    // the form boundary and its search, kept so a session can reuse them for a form with the same boundary
+    private byte[] formBoundary;
+    private byte[] formBoundaryWithTerminator;
+    private TokenSearch formBoundaryWithPrefix;
+    // counts the forms parsed, so parts and iterators of an earlier form can tell they are out of date
+    private int generation = 0;
 
     /**
      * Uses the <code>boundary</code> to parse the <code>encoding</code> coded <code>inputStream</code>,
@@ -91,13 +110,135 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
         return new StreamingMultipartFormParts(boundary, encoding, new TokenBoundedInputStream(inputStream, DEFAULT_BUFSIZE, maxStreamLength));
     }
 
+    /**
+     * As <code>parse(byte[], InputStream, Charset, int)</code>, but reads the body straight from a blocking
+     * <code>channel</code> into the parser's buffer. Each part's body can then be read without copying using
+     * <code>StreamingPart.readSlice()</code>.
+     * <br/>
+     * You need to look after closing the channel yourself.
+     *
+     * @param boundary        byte array defining the boundary between parts
+     * @param channel         of the body of an HTTP request, in blocking mode
+     * @param encoding        of the body of the HTTP request
+     * @param maxStreamLength maximum length of the body, or -1 for no limit
+     * @return an <code>Iterable&lt;StreamingPart></code> that you can for() through to get each part
+     */
+    public static Iterable<StreamingPart> parse(byte[] boundary, ReadableByteChannel channel, Charset encoding, int maxStreamLength) {
+        return parse(boundary, channel, encoding, maxStreamLength, false);
+    }
+
+    /**
+     * As <code>parse(byte[], ReadableByteChannel, Charset, int)</code>, with the choice of a direct, off-heap
+     * buffer. A socket channel reads straight into a direct buffer, where it would otherwise read into a
+     * temporary direct buffer and copy from that, and many large buffers are kept out of the garbage collector's
+     * way. Slices of a direct buffer are not backed by an array.
+     *
+     * @param directBuffer whether the parser's buffer is a direct <code>ByteBuffer</code>
+     */
+    public static Iterable<StreamingPart> parse(byte[] boundary, ReadableByteChannel channel, Charset encoding, int maxStreamLength, boolean directBuffer) {
+        return new StreamingMultipartFormParts(boundary, encoding, new TokenBoundedInputStream(channel, DEFAULT_BUFSIZE, maxStreamLength, directBuffer));
+    }
+
+    public static Iterable<StreamingPart> parse(byte[] boundary, ReadableByteChannel channel, Charset encoding) {
+        return parse(boundary, channel, encoding, -1);
+    }
+
+    /**
+     * Parses a body that is already in memory, for example one memory-mapped from a file with
+     * <code>FileChannel.map</code>, in place. The body is read from its position to its limit, and is not changed.
+     * <br/>
+     * Nothing is copied into a separate buffer: the first <code>StreamingPart.readSlice()</code> of each part
+     * returns all of its contents as a slice of <code>body</code>, which stays valid as long as <code>body</code>
+     * does. <code>MultipartFormMap.formMap(ByteBuffer, byte[], Charset)</code> turns these into Parts.
+     *
+     * @param boundary byte array defining the boundary between parts
+     * @param body     the whole body of an HTTP request
+     * @param encoding of the body of the HTTP request
+     * @return an <code>Iterable&lt;StreamingPart></code> that you can for() through to get each part
+     */
+    public static Iterable<StreamingPart> parse(byte[] boundary, ByteBuffer body, Charset encoding) {
+        return new StreamingMultipartFormParts(boundary, encoding, new TokenBoundedInputStream(body));
+    }
+
+    /**
+     * Hands out only the parts of <code>parts</code> that are <code>wanted</code>, judged on their headers alone.
+     * The contents of the others are skipped through the buffer with the boundary search, without being copied
+     * anywhere, which is much quicker than reading them when forms carry large attachments that aren't needed.
+     * <br/>
+     * For example <code>only(parts, part -> part.isFormField())</code> drops all the files.
+     *
+     * @param parts  the parts of a form, from <code>parse</code> or a <code>MultipartParserSession</code>
+     * @param wanted whether a part should be handed out
+     * @return an <code>Iterable&lt;StreamingPart></code> of the wanted parts
+     */
+    public static Iterable<StreamingPart> only(Iterable<StreamingPart> parts, Predicate<? super PartMetaData> wanted) {
+        return () -> new WantedPartIterator(parts.iterator(), wanted);
+    }
+
     private StreamingMultipartFormParts(byte[] boundary, Charset encoding, TokenBoundedInputStream tokenBoundedInputStream) {
-        this.boundary = prependBoundaryWithStreamTerminator(boundary);
         this.encoding = encoding;
+        this.headerLineParser = new HeaderLineParser(encoding);
         this.inputStream = tokenBoundedInputStream;
+        this.keepsBuffer = false;
+
+        start(boundary);
+    }
+
+    /**
+     * For a <code>MultipartParserSession</code>, which calls <code>reset</code> before each form.
+     */
+    StreamingMultipartFormParts(Charset encoding, int bufSize, boolean directBuffer) {
+        this.encoding = encoding;
+        this.headerLineParser = new HeaderLineParser(encoding);
+        this.inputStream = new TokenBoundedInputStream((InputStream) null, bufSize, -1, directBuffer);
+        this.keepsBuffer = true;
+        release();
+    }
+
+    /**
+     * Starts parsing another form, reusing the buffers. Parts and iterators of the last form stop working.
+     */
+    void reset(byte[] boundary, InputStream inputStream, int maxStreamLength) {
+        this.inputStream.restart(inputStream, maxStreamLength);
+        start(boundary);
+    }
+
+    void reset(byte[] boundary, ReadableByteChannel channel, int maxStreamLength) {
+        this.inputStream.restart(channel, maxStreamLength);
+        start(boundary);
+    }
+
+    /**
+     * Lets go of the form being parsed. Its parts and iterator stop working.
+     */
+    void release() {
+        generation++;
+        inputStream.restart((InputStream) null, -1);
+        state = MultipartFormStreamState.eos;
+    }
 
-        this.boundaryWithPrefix = addPrefixToBoundary(this.boundary);
+    /**
+     * @return true if the search for the form's boundary has switched to the linear search
+     */
+    boolean searchingLinearly() {
+        return formBoundaryWithPrefix instanceof GuardedTokenSearch && ((GuardedTokenSearch) formBoundaryWithPrefix).hasSwitchedToLinearSearch();
+    }
 
+    private void start(byte[] boundary) {
+        generation++;
+        if (formBoundary == null || !Arrays.equals(formBoundary, boundary)) {
+            formBoundary = boundary.clone();
+            formBoundaryWithTerminator = prependBoundaryWithStreamTerminator(boundary);
+            formBoundaryWithPrefix = addPrefixToBoundary(formBoundaryWithTerminator);
+        } else {
+            formBoundaryWithPrefix.restart();
+        }
+        this.boundary = formBoundaryWithTerminator;
+        this.boundaryWithPrefix = formBoundaryWithPrefix;
+
+        mixedName = null;
+        oldBoundary = null;
+        oldBoundaryWithPrefix = null;
         state = MultipartFormStreamState.findBoundary;
         iterator = new StreamingMulipartFormPartIterator();
     }
@@ -106,11 +247,11 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
         return iterator;
     }
 
-    private byte[] addPrefixToBoundary(byte[] boundary) {
+    static TokenSearch addPrefixToBoundary(byte[] boundary) {
         byte[] b = new byte[boundary.length + FIELD_SEPARATOR.length]; // in apache they just use BOUNDARY_PREFIX
         System.arraycopy(boundary, 0, b, 2, boundary.length);
         System.arraycopy(FIELD_SEPARATOR, 0, b, 0, FIELD_SEPARATOR.length);
-        return b;
+        return TokenSearches.forBoundary(b);
     }
 
     public static byte[] prependBoundaryWithStreamTerminator(byte[] boundary) {
@@ -169,81 +310,80 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
     }
 
     private StreamingPart parsePart() throws IOException {
-        Map<String, String> headers = parseHeaderLines();
+        PartHeaders headers = parseHeaderLines();
 
-        String contentType = headers.get("Content-Type");
+        String contentType = headers.get(PartHeaders.CONTENT_TYPE);
         if (contentType != null && contentType.startsWith("multipart/mixed")) {
-            Map<String, String> contentDisposition = new ParameterParser().parse(headers.get("Content-Disposition"), ';');
-            Map<String, String> contentTypeParams = new ParameterParser().parse(contentType, ';');
+            HeaderParameters contentDisposition = HeaderParameters.parse(headers.get(PartHeaders.CONTENT_DISPOSITION));
+            HeaderParameters contentTypeParams = HeaderParameters.parse(contentType);
 
-            mixedName = trim(contentDisposition.get("name"));
+            mixedName = trim(contentDisposition.name);
 
             oldBoundary = boundary;
             oldBoundaryWithPrefix = boundaryWithPrefix;
-            boundary = (new String(STREAM_TERMINATOR, encoding) + trim(contentTypeParams.get("boundary"))).getBytes(encoding);
+            boundary = (new String(STREAM_TERMINATOR, encoding) + trim(contentTypeParams.boundary)).getBytes(encoding);
             boundaryWithPrefix = addPrefixToBoundary(this.boundary);
 
             state = MultipartFormStreamState.findBoundary;
 
             return parseNextPart();
         } else {
-            Map<String, String> contentDisposition = new ParameterParser().parse(headers.get("Content-Disposition"), ';');
-            String fieldName = contentDisposition.containsKey("attachment") ? mixedName : trim(contentDisposition.get("name"));
-            String filename = filenameFromMap(contentDisposition);
+            HeaderParameters contentDisposition = HeaderParameters.parse(headers.get(PartHeaders.CONTENT_DISPOSITION));
+            String fieldName = contentDisposition.attachment ? mixedName : trim(contentDisposition.name);
+            String filename = contentDisposition.fileName();
 
             return new StreamingPart(
                 fieldName,
-                !contentDisposition.containsKey("filename"),
+                !contentDisposition.hasFilename,
                 contentType,
                 filename,
                 new BoundedInputStream(), headers);
         }
     }
 
-    private String filenameFromMap(Map<String, String> contentDisposition) {
-        if (contentDisposition.containsKey("filename")) {
-            String filename = contentDisposition.get("filename");
-            return trim(filename == null ? "" : filename);
-        } else {
-            return null;
-        }
-    }
-
-
-    private String trim(String string) {
+    static String trim(String string) {
         if (string != null) {
             return string.trim();
         }
         return null;
     }
 
-    private Map<String, String> parseHeaderLines() throws IOException {
+    private PartHeaders parseHeaderLines() throws IOException {
         assertStateIs(MultipartFormStreamState.header);
 
-        Map<String, String> result = new HashMap<>();
+        PartHeaders result = headerLineParser.newHeaders();
         String previousHeaderName = null;
         long maxByteIndexForHeader = inputStream.currentByteIndex() + HEADER_SIZE_MAX;
         while (inputStream.currentByteIndex() < maxByteIndexForHeader) {
-            String header = readStringFromStreamUntilMatched(inputStream, FIELD_SEPARATOR, (int) (maxByteIndexForHeader - inputStream.currentByteIndex()), encoding);
-            if (header.equals("")) {
+            int length = inputStream.getLineBytes(headerLine, (int) (maxByteIndexForHeader - inputStream.currentByteIndex()), encoding);
+            if (length == 0) {
                 state = MultipartFormStreamState.contents;
                 return result;
             }
-            if (header.matches("\\s+.*")) {
-                result.put(previousHeaderName, result.get(previousHeaderName) + "; " + header.trim());
-            } else {
-                int index = header.indexOf(":");
-                if (index < 0) {
-                    throw new ParseError("Header didn't include a colon <<" + header + ">>");
-                } else {
-                    previousHeaderName = header.substring(0, index).trim();
-                    result.put(previousHeaderName, header.substring(index + 1).trim());
-                }
-            }
+            previousHeaderName = headerLineParser.addHeaderLine(result, previousHeaderName, headerLine, length);
         }
         throw new TokenNotFoundException("Didn't find end of Header section within " + HEADER_SIZE_MAX + " bytes");
     }
 
+    /**
+     * Adds a header line to <code>headers</code>. A line starting with whitespace continues the previous header.
+     *
+     * @return the name of the header the line belongs to
+     */
+    static String addHeaderLine(Map<String, String> headers, String previousHeaderName, String header) {
+        if (header.matches("\\s+.*")) {
+            headers.put(previousHeaderName, headers.get(previousHeaderName) + "; " + header.trim());
+            return previousHeaderName;
+        }
+        int index = header.indexOf(":");
+        if (index < 0) {
+            throw new ParseError("Header didn't include a colon <<" + header + ">>");
+        }
+        String headerName = header.substring(0, index).trim();
+        headers.put(headerName, header.substring(index + 1).trim());
+        return headerName;
+    }
+
     public static String readStringFromStreamUntilMatched(TokenBoundedInputStream tokenBoundedInputStream, byte[] endOfToken, int maxStringSizeInBytes, Charset encoding) throws IOException {
         // very inefficient search!
         byte[] buffer = new byte[maxStringSizeInBytes];
@@ -252,10 +392,12 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
     }
 
     public class StreamingMulipartFormPartIterator implements Iterator<StreamingPart> {
+        private final int formGeneration = generation;
         private boolean nextIsKnown;
         private StreamingPart currentPart;
 
         @Override public boolean hasNext() {
+            assertFormIsCurrent();
             if (nextIsKnown) {
                 return !isEndOfStream();
             }
@@ -282,6 +424,7 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
          * @throws ParseError             if there was a problem parsing the stream
          */
         @Override public StreamingPart next() {
+            assertFormIsCurrent();
             if (nextIsKnown) {
                 if (isEndOfStream()) {
                     throw new NoSuchElementException("No more parts in this MultipartForm");
@@ -307,27 +450,81 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
 
         private StreamingPart safelyParseNextPart() {
             try {
-                return parseNextPart();
+                StreamingPart part = parseNextPart();
+                if (part == null) {
+                    finished();
+                }
+                return part;
             } catch (IOException e) {
                 nextIsKnown = true;
                 currentPart = null;
+                finished();
                 throw new ParseError(e);
             }
         }
 
+        private void finished() {
+            if (!keepsBuffer) {
+                inputStream.releaseBuffer();
+            }
+        }
+
         private boolean isEndOfStream() {
             return currentPart == null;
         }
 
+        private void assertFormIsCurrent() {
+            if (formGeneration != generation) {
+                throw new IllegalStateException("The parser has moved on to another form");
+            }
+        }
+
     }
 
-    private class BoundedInputStream extends InputStream {
+    private static class WantedPartIterator implements Iterator<StreamingPart> {
+        private final Iterator<StreamingPart> parts;
+        private final Predicate<? super PartMetaData> wanted;
+        private StreamingPart next;
+
+        WantedPartIterator(Iterator<StreamingPart> parts, Predicate<? super PartMetaData> wanted) {
+            this.parts = parts;
+            this.wanted = wanted;
+        }
+
+        @Override public boolean hasNext() {
+            while (next == null && parts.hasNext()) {
+                StreamingPart part = parts.next();
+                if (wanted.test(part)) {
+                    next = part;
+                } else {
+                    try {
+                        part.inputStream.close();
+                    } catch (IOException e) {
+                        throw new ParseError(e);
+                    }
+                }
+            }
+            return next != null;
+        }
 
+        @Override public StreamingPart next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more parts in this MultipartForm");
+            }
+            StreamingPart part = next;
+            next = null;
+            return part;
+        }
+    }
+
+    private class BoundedInputStream extends PartInputStream {
+
+        private final int formGeneration = generation;
         boolean endOfStream = false;
         boolean closed = false;
 
         @Override public int read() throws IOException {
-            if (closed) {
+            if (closed || formGeneration != generation) {
                 throw new AlreadyClosedException();
             }
 
@@ -338,8 +535,109 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
             return readNextByte();
         }
 
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (closed || formGeneration != generation) {
+                throw new AlreadyClosedException();
+            }
+            if (b == null) {
+                throw new NullPointerException();
+            } else if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+
+            if (endOfStream) {
+                return -1;
+            }
+
+            return checkForEndOfStream(inputStream.readUnlessTokenMatched(boundaryWithPrefix, b, off, len));
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException {
+            if (closed || formGeneration != generation) {
+                throw new AlreadyClosedException();
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            if (endOfStream) {
+                return -1;
+            }
+
+            return checkForEndOfStream(inputStream.readUnlessTokenMatched(boundaryWithPrefix, dst));
+        }
+
+        @Override public ByteBuffer readSlice() throws IOException {
+            if (closed || formGeneration != generation) {
+                throw new AlreadyClosedException();
+            }
+
+            if (endOfStream) {
+                return null;
+            }
+
+            ByteBuffer slice = inputStream.readSliceUnlessTokenMatched(boundaryWithPrefix);
+            if (slice != null) {
+                return slice;
+            }
+
+            // at a possible boundary, so check it a byte at a time
+            int b = readNextByte();
+            if (b < 0) {
+                return null;
+            }
+            return ByteBuffer.wrap(new byte[]{(byte) b}).asReadOnlyBuffer();
+        }
+
+        @Override public long transferTo(OutputStream out) throws IOException {
+            if (closed || formGeneration != generation) {
+                throw new AlreadyClosedException();
+            }
+            long count = 0;
+            while (!endOfStream) {
+                int length = inputStream.writeUnlessTokenMatched(boundaryWithPrefix, out);
+                if (length == 0) {
+                    // at a possible boundary, so check it a byte at a time
+                    int b = readNextByte();
+                    if (b < 0) {
+                        break;
+                    }
+                    out.write(b);
+                    length = 1;
+                }
+                count += length;
+            }
+            return count;
+        }
+
+        /**
+         * Skips through the buffer with the boundary search, without copying the bytes anywhere.
+         */
+        @Override public long skip(long n) throws IOException {
+            if (closed || formGeneration != generation) {
+                throw new AlreadyClosedException();
+            }
+            return skipBytes(n);
+        }
+
+        private long skipBytes(long n) throws IOException {
+            if (endOfStream || n <= 0) {
+                return 0;
+            }
+            long result = inputStream.skipUnlessTokenMatched(boundaryWithPrefix, n);
+            if (result < 0) {
+                checkForEndOfStream((int) result);
+                return 0;
+            }
+            return result;
+        }
+
         private int readNextByte() throws IOException {
-            int result = inputStream.readByteFromStreamUnlessTokenMatched(boundaryWithPrefix);
+            return checkForEndOfStream(inputStream.readByteFromStreamUnlessTokenMatched(boundaryWithPrefix));
+        }
+
+        private int checkForEndOfStream(int result) {
             if (result == -1) {
                 state = MultipartFormStreamState.findPrefix;
                 endOfStream = true;
@@ -355,11 +653,11 @@ public class StreamingMultipartFormParts implements Iterable<StreamingPart> {
 
         @Override public void close() {
             closed = true;
-            if (!endOfStream) {
+            if (!endOfStream && formGeneration == generation) {
                 try {
                     //noinspection StatementWithEmptyBody
-                    while (readNextByte() >= 0) {
-                        // drop unwanted bytes :(
+                    while (skipBytes(Long.MAX_VALUE) > 0) {
+                        // drop unwanted bytes
                     }
                 } catch (IOException e) {
                     endOfStream = true;
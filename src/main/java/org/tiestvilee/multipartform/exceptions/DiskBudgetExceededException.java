@@ -0,0 +1,9 @@
+package org.tiestvilee.multipartform.exceptions;
+
+import java.io.IOException;
+
+public class DiskBudgetExceededException extends IOException {
+    public DiskBudgetExceededException(String message) {
+        super(message);
+    }
+}
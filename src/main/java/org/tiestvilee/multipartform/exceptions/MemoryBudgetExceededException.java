@@ -0,0 +1,9 @@
+package org.tiestvilee.multipartform.exceptions;
+
+import java.io.IOException;
+
+public class MemoryBudgetExceededException extends IOException {
+    public MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+}
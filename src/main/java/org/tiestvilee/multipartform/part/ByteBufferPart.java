@@ -0,0 +1,60 @@
+package org.tiestvilee.multipartform.part;
+
+import org.tiestvilee.multipartform.stream.ByteBufferInputStream;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A Part whose contents are a slice of the body it was parsed from, for example a body memory-mapped from
+ * a file, so nothing was copied to store it. The slice stays valid for as long as the Part is referenced.
+ */
+public class ByteBufferPart extends Part {
+    private final ByteBuffer contents;
+    private final Charset encoding;
+    private String content = null;
+
+    public ByteBufferPart(PartMetaData original, ByteBuffer contents, Charset encoding) {
+        super(original.fieldName, original.formField, original.contentType, original.fileName, original.headers, contents.remaining());
+
+        this.contents = contents.slice().asReadOnlyBuffer();
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return a read-only view of the contents
+     */
+    public ByteBuffer getByteBuffer() {
+        return contents.duplicate();
+    }
+
+    /**
+     * @return a copy of the contents
+     */
+    public byte[] getBytes() {
+        byte[] bytes = new byte[length];
+        contents.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public String getString() {
+        if (content == null) {
+            // as InMemoryPart, calculating this more than once is harmless
+            content = encoding.decode(contents.duplicate()).toString();
+        }
+        return content;
+    }
+
+    public InputStream getNewInputStream() {
+        return new ByteBufferInputStream(contents.duplicate());
+    }
+
+    @Override public boolean isInMemory() {
+        return true;
+    }
+
+    public void close() {
+        // do nothing, the slice is released with the body it came from
+    }
+}
@@ -1,22 +1,125 @@
 package org.tiestvilee.multipartform.part;
 
+import org.tiestvilee.multipartform.exceptions.AlreadyClosedException;
+
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystemException;
+import java.nio.file.StandardOpenOption;
 
+/**
+ * A Part written to disk because it was too big to keep in memory.
+ * <br/>
+ * It is read through one <code>FileChannel</code>, opened when first needed and shared by every reader. Reads are
+ * positional, so any number of threads can read the part at once, each from wherever it likes, without opening
+ * the file again. The file can also be memory-mapped, for reading it many times.
+ * <br/>
+ * Closing the Part deletes the file, or gives it back to the <code>SpillFilePool</code> it came from. A file that
+ * has been memory-mapped is always deleted, as emptying it for reuse would break views still in use. A file from a
+ * pool is handed to the <code>SpillFileCleaner</code> to do that in the background, and is deleted by it if the
+ * Part is garbage collected without being closed.
+ */
 public class DiskBackedPart extends Part {
 
     private final File theFile;
+    private final SpillFileCleaner.Tracked tracked;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private boolean wasMapped = false;
+    private boolean closed = false;
 
     public DiskBackedPart(PartMetaData part, File theFile) {
-        super(part.fieldName, part.formField, part.contentType, part.fileName, part.headers, (int) theFile.length());
+        this(part, theFile, (int) theFile.length());
+    }
+
+    /**
+     * For a file that is still being written, so its length can't be taken from the file yet.
+     */
+    public DiskBackedPart(PartMetaData part, File theFile, int length) {
+        this(part, theFile, length, null);
+    }
+
+    /**
+     * @param pool that <code>theFile</code> is given back to when the Part is closed, or null to delete it. The
+     *             <code>length</code> bytes written to it must have been reserved from the pool, and are released
+     *             along with the file.
+     */
+    public DiskBackedPart(PartMetaData part, File theFile, int length, SpillFilePool pool) {
+        super(part.fieldName, part.formField, part.contentType, part.fileName, part.headers, length);
         this.theFile = theFile;
+        this.tracked = pool == null ? null : SpillFileCleaner.shared().track(this, theFile, length, pool);
     }
 
+    /**
+     * @return a stream of the contents, which reads from the shared channel, so it doesn't need closing
+     */
     public InputStream getNewInputStream() throws IOException {
-        return new FileInputStream(theFile);
+        channel();
+        return new PositionalInputStream(length);
+    }
+
+    /**
+     * Reads the contents from <code>position</code> into <code>dst</code>, as <code>FileChannel.read(ByteBuffer,
+     * long)</code>, but never past the end of the part. Safe to call from several threads at once.
+     *
+     * @return the number of bytes read, or -1 if <code>position</code> is at or after the end of the contents
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (position >= length) {
+            return -1;
+        }
+        if (dst.remaining() <= length - position) {
+            return channel().read(dst, position);
+        }
+        // the file can hold more than the part, so don't read past its end
+        ByteBuffer limited = dst.duplicate();
+        limited.limit(dst.position() + (int) (length - position));
+        int count = channel().read(limited, position);
+        if (count > 0) {
+            dst.position(dst.position() + count);
+        }
+        return count;
+    }
+
+    /**
+     * @return <code>length</code> bytes of the contents from <code>offset</code>, in a new buffer ready to read
+     */
+    public ByteBuffer readRange(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is not within the " + this.length + " bytes of the part");
+        }
+        ByteBuffer range = ByteBuffer.allocate(length);
+        FileChannel channel = channel();
+        while (range.hasRemaining()) {
+            if (channel.read(range, offset + range.position()) < 0) {
+                throw new EOFException("File ended before the end of the part");
+            }
+        }
+        range.flip();
+        return range;
+    }
+
+    /**
+     * Maps the file into memory the first time it is called, and returns a read-only view of the mapping each time.
+     * The mapping lasts until the Part and every view of it are no longer referenced, even after the Part is closed,
+     * so views must not be used after <code>close()</code>.
+     */
+    public ByteBuffer getMappedByteBuffer() throws IOException {
+        synchronized (this) {
+            if (mapped == null) {
+                mapped = channel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                wasMapped = true;
+            }
+            return mapped.asReadOnlyBuffer();
+        }
     }
 
     @Override public boolean isInMemory() {
@@ -32,8 +135,90 @@ public class DiskBackedPart extends Part {
     }
 
     public void close() throws IOException {
-        if (!theFile.delete()) {
+        boolean reusable;
+        synchronized (this) {
+            if (closed && tracked != null) {
+                return; // the file may already be in use by another Part
+            }
+            closed = true;
+            mapped = null;
+            reusable = !wasMapped;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+        if (tracked != null) {
+            tracked.release(reusable);
+        } else if (!theFile.delete()) {
             throw new FileSystemException("Failed to delete file");
         }
     }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (closed) {
+            throw new AlreadyClosedException();
+        }
+        // a reader interrupted during a read closes the channel, so open it again for everyone else
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(theFile.toPath(), StandardOpenOption.READ);
+            if (tracked != null) {
+                tracked.opened(channel);
+            }
+        }
+        return channel;
+    }
+
+    private class PositionalInputStream extends InputStream {
+        private final long end;
+        private final byte[] single = new byte[1];
+        private long position = 0;
+        private long mark = 0;
+
+        PositionalInputStream(long end) {
+            this.end = end;
+        }
+
+        @Override public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0x0FF;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int count = channel().read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override public boolean markSupported() {
+            return true;
+        }
+
+        @Override public synchronized void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override public synchronized void reset() {
+            position = mark;
+        }
+    }
 }
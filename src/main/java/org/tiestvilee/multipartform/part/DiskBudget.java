@@ -0,0 +1,125 @@
+package org.tiestvilee.multipartform.part;
+
+import org.tiestvilee.multipartform.exceptions.DiskBudgetExceededException;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The disk that Parts written to disk may take up, per directory. Every chunk is reserved against its directory's
+ * quota before it is written, so a write that would go over fails straight away with a
+ * <code>DiskBudgetExceededException</code>, rather than filling the disk and failing halfway through a file. The
+ * bytes are released once the Part's file has been deleted, or emptied for reuse.
+ * <br/>
+ * Usage is counted for every directory whether or not it has a quota, so that it can be watched, for example to
+ * turn away uploads before the disk fills.
+ */
+public class DiskBudget {
+    private static final DiskBudget SHARED = new DiskBudget();
+
+    private final ConcurrentHashMap<File, Directory> directories = new ConcurrentHashMap<>();
+    private final AtomicLong refused = new AtomicLong(0);
+
+    /**
+     * @return the budget that <code>SpillFilePool</code>s reserve against
+     */
+    public static DiskBudget shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets the most bytes that Parts may take up in <code>directory</code>, or the default temporary directory if
+     * null. Bytes already written are kept, even if they are now over the quota.
+     */
+    public void setQuota(File directory, long bytes) {
+        directory(directory).quota = bytes;
+    }
+
+    /**
+     * @return the quota of <code>directory</code>, or <code>Long.MAX_VALUE</code> if it hasn't got one
+     */
+    public long quota(File directory) {
+        return directory(directory).quota;
+    }
+
+    /**
+     * @return the bytes that Parts take up in <code>directory</code>
+     */
+    public long used(File directory) {
+        return directory(directory).used.get();
+    }
+
+    /**
+     * @return the bytes that can still be written to <code>directory</code>
+     */
+    public long available(File directory) {
+        Directory counted = directory(directory);
+        return Math.max(0, counted.quota - counted.used.get());
+    }
+
+    /**
+     * @return the bytes that Parts take up in every directory
+     */
+    public long used() {
+        long used = 0;
+        for (Directory directory : directories.values()) {
+            used += directory.used.get();
+        }
+        return used;
+    }
+
+    /**
+     * @return the bytes used in each directory written to
+     */
+    public Map<File, Long> usage() {
+        Map<File, Long> usage = new TreeMap<>();
+        for (Map.Entry<File, Directory> entry : directories.entrySet()) {
+            usage.put(entry.getKey(), entry.getValue().used.get());
+        }
+        return Collections.unmodifiableMap(usage);
+    }
+
+    /**
+     * @return how many writes were refused for going over a quota
+     */
+    public long refused() {
+        return refused.get();
+    }
+
+    Directory directory(File directory) {
+        File key = (directory == null ? new File(System.getProperty("java.io.tmpdir")) : directory).getAbsoluteFile().toPath().normalize().toFile();
+        return directories.computeIfAbsent(key, Directory::new);
+    }
+
+    class Directory {
+        private final File file;
+        private final AtomicLong used = new AtomicLong(0);
+        private volatile long quota = Long.MAX_VALUE;
+
+        private Directory(File file) {
+            this.file = file;
+        }
+
+        void reserve(long bytes) throws DiskBudgetExceededException {
+            while (true) {
+                long current = used.get();
+                long next = current + bytes;
+                if (next > quota || next < 0) {
+                    refused.incrementAndGet();
+                    throw new DiskBudgetExceededException("Writing " + bytes + " more bytes to " + file + " would go over its quota of " + quota + " bytes");
+                }
+                if (used.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        void release(long bytes) {
+            used.addAndGet(-bytes);
+        }
+    }
+}
@@ -1,23 +1,87 @@
 package org.tiestvilee.multipartform.part;
 
+import org.tiestvilee.multipartform.stream.ChunkedBytes;
+
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 public class InMemoryPart extends Part {
     private final byte[] bytes; // not immutable
+    private final int offset;
+    private final ChunkedBytes chunks;
     private final Charset encoding;
     private String content = null;
 
     public InMemoryPart(PartMetaData original, byte[] bytes, Charset encoding) {
-        super(original.fieldName, original.formField, original.contentType, original.fileName, original.headers, bytes.length);
+        this(original, bytes, 0, bytes.length, encoding);
+    }
+
+    /**
+     * A Part whose contents are <code>length</code> bytes of <code>bytes</code> from <code>offset</code>, usually
+     * the body the form was parsed from. Nothing is copied.
+     */
+    public InMemoryPart(PartMetaData original, byte[] bytes, int offset, int length, Charset encoding) {
+        super(original.fieldName, original.formField, original.contentType, original.fileName, original.headers, length);
 
         this.bytes = bytes;
+        this.offset = offset;
+        this.chunks = null;
         this.encoding = encoding;
     }
 
+    /**
+     * A Part whose contents are held in <code>chunks</code>, as they were read, without copying them into one array.
+     * Views of the chunks are handed out, so they must not have been borrowed from a pool. Closing the Part only
+     * releases the memory reserved for them, and its contents can still be read.
+     */
+    public InMemoryPart(PartMetaData original, ChunkedBytes chunks, Charset encoding) {
+        super(original.fieldName, original.formField, original.contentType, original.fileName, original.headers, chunks.length());
+
+        this.bytes = null;
+        this.offset = 0;
+        if (chunks.isPooled()) {
+            throw new IllegalArgumentException("The contents of an InMemoryPart must not be in pooled chunks");
+        }
+        this.chunks = chunks;
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return the contents. If this Part is a view of a larger array, that is a copy of the view.
+     */
     public byte[] getBytes() {
-        return bytes;
+        if (chunks != null) {
+            return chunks.toByteArray();
+        }
+        if (offset == 0 && length == bytes.length) {
+            return bytes;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, offset, result, 0, length);
+        return result;
+    }
+
+    /**
+     * @return a view of the contents, without copying them, unless they are held in more than one chunk
+     */
+    public ByteBuffer getByteBuffer() {
+        if (chunks != null) {
+            ByteBuffer[] buffers = chunks.buffers();
+            return buffers.length == 1 ? buffers[0] : ByteBuffer.wrap(chunks.toByteArray()).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return views of the contents, in order, without copying them
+     */
+    public ByteBuffer[] getByteBuffers() {
+        if (chunks != null) {
+            return chunks.buffers();
+        }
+        return new ByteBuffer[]{getByteBuffer()};
     }
 
     public String getString() {
@@ -25,13 +89,16 @@ public class InMemoryPart extends Part {
             // not a threading problem because the following calculation will always return the same value
             // and if it happens to be calculated a couple of times and assigned to content a couple of times
             // that isn't the end of the world.
-            content = new String(bytes, encoding);
+            content = chunks != null ? chunks.toString(encoding) : new String(bytes, offset, length, encoding);
         }
         return content;
     }
 
     public InputStream getNewInputStream() {
-        return new ByteArrayInputStream(bytes);
+        if (chunks != null) {
+            return chunks.inputStream();
+        }
+        return new ByteArrayInputStream(bytes, offset, length);
     }
 
     @Override public boolean isInMemory() {
@@ -39,6 +106,8 @@ public class InMemoryPart extends Part {
     }
 
     public void close() {
-        // do nothing
+        if (chunks != null) {
+            chunks.release();
+        }
     }
 }
@@ -0,0 +1,194 @@
+package org.tiestvilee.multipartform.part;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cleans up after the files that <code>DiskBackedPart</code>s are written to, on one daemon thread.
+ * <br/>
+ * Closing a Part hands its file over to be deleted, or emptied and given back to its <code>SpillFilePool</code>,
+ * so <code>Parts.close()</code> doesn't wait on the file system. A Part that is garbage collected without being
+ * closed has its file deleted too. Only the files of live Parts are tracked, unlike
+ * <code>File.deleteOnExit()</code>, which remembers every file until the JVM exits.
+ * <br/>
+ * Files left behind by a JVM that didn't get to clean up are removed by <code>sweep(File)</code>, at startup.
+ */
+public final class SpillFileCleaner {
+    private static final SpillFileCleaner SHARED = new SpillFileCleaner();
+
+    private final ReferenceQueue<DiskBackedPart> queue = new ReferenceQueue<>();
+    // keeps the references reachable until they have been cleaned
+    private final Set<Tracked> live = ConcurrentHashMap.newKeySet();
+    private final Object lock = new Object();
+    private int pending = 0;
+    private Thread thread;
+
+    private SpillFileCleaner() {
+    }
+
+    public static SpillFileCleaner shared() {
+        return SHARED;
+    }
+
+    /**
+     * Deletes the spill files in <code>directory</code> that were last modified before this JVM started, which
+     * are the ones a previous run left behind. The directory must not be shared with other running instances.
+     *
+     * @return the number of files deleted
+     */
+    public static int sweep(File directory) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SpillFilePool.SPILL_SUFFIX));
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        long started = ManagementFactory.getRuntimeMXBean().getStartTime();
+        int deleted = 0;
+        for (File file : files) {
+            if (file.lastModified() < started && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the number of files belonging to Parts that haven't been closed or collected yet
+     */
+    public int liveFiles() {
+        return live.size();
+    }
+
+    /**
+     * Waits for the files of every Part closed so far to be cleaned up.
+     *
+     * @return false if that took longer than <code>timeout</code>
+     */
+    public boolean awaitCleanup(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (pending > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    Tracked track(DiskBackedPart part, File file, long length, SpillFilePool pool) {
+        synchronized (lock) {
+            if (thread == null) {
+                thread = new Thread(this::run, "multipart-spill-file-cleaner");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        Tracked tracked = new Tracked(part, file, length, pool, this);
+        live.add(tracked);
+        return tracked;
+    }
+
+    private void run() {
+        while (true) {
+            Tracked tracked;
+            try {
+                tracked = (Tracked) queue.remove();
+            } catch (InterruptedException e) {
+                continue; // nothing else cleans up, so carry on
+            }
+            live.remove(tracked);
+            boolean released = tracked.clean();
+            if (released) {
+                synchronized (lock) {
+                    pending--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * The file of one Part, and the channel it is read through, which mustn't refer back to the Part.
+     */
+    static class Tracked extends PhantomReference<DiskBackedPart> {
+        private final File file;
+        private final long length;
+        private final SpillFilePool pool;
+        private final SpillFileCleaner cleaner;
+        private volatile FileChannel channel;
+        private boolean released = false;
+        private boolean reusable = false;
+        private boolean cleaned = false;
+
+        private Tracked(DiskBackedPart part, File file, long length, SpillFilePool pool, SpillFileCleaner cleaner) {
+            super(part, cleaner.queue);
+            this.file = file;
+            this.length = length;
+            this.pool = pool;
+            this.cleaner = cleaner;
+        }
+
+        void opened(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Hands the file over to be cleaned up, once the Part has closed its channel.
+         *
+         * @param reusable whether the file can go back to its pool, rather than being deleted
+         */
+        void release(boolean reusable) {
+            synchronized (this) {
+                if (released || cleaned) {
+                    return;
+                }
+                released = true;
+                this.reusable = reusable;
+            }
+            synchronized (cleaner.lock) {
+                cleaner.pending++;
+            }
+            enqueue(); // may already have been queued by the garbage collector, which is just as good
+        }
+
+        /**
+         * @return whether the file had been released, rather than abandoned
+         */
+        private boolean clean() {
+            boolean wasReleased;
+            boolean reuse;
+            synchronized (this) {
+                cleaned = true;
+                wasReleased = released;
+                reuse = reusable;
+            }
+            try {
+                FileChannel open = channel;
+                if (open != null) {
+                    open.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                // delete it anyway
+            }
+            try {
+                boolean gone = reuse ? pool.giveBack(file) : file.delete();
+                if (!gone && file.exists()) {
+                    file.deleteOnExit(); // the last resort, for the few files that can't be deleted now
+                }
+            } catch (RuntimeException e) {
+                // leave it to sweep(), rather than stop cleaning up
+            }
+            pool.release(length);
+            return wasReleased;
+        }
+    }
+}
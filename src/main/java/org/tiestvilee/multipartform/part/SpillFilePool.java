@@ -0,0 +1,127 @@
+package org.tiestvilee.multipartform.part;
+
+import org.tiestvilee.multipartform.exceptions.DiskBudgetExceededException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The files that Parts too big for memory are written to. Creating and deleting a file for every such Part means
+ * a random name, an exclusive create and two changes to the directory each time, which under bursts of uploads
+ * take longer than writing small Parts and contend on the directory. A pool keeps up to <code>maxRetained</code>
+ * files once their Parts are closed, emptied, and hands them out again, so the directory is left alone.
+ * <br/>
+ * Files are named <code>spill-*.spill</code>, never after the file uploaded, as a name the client chose may not
+ * be a valid path on this file system. A pool with <code>maxRetained</code> of 0 keeps nothing, creating a file for
+ * each Part and deleting it when the Part is closed. <code>close()</code> deletes the files kept. Files are cleaned up by the <code>SpillFileCleaner</code>
+ * once their Parts are closed.
+ * <br/>
+ * What is written to the files is counted against the directory's quota in <code>DiskBudget.shared()</code>.
+ * Writers <code>reserve</code> each chunk before writing it, and the bytes of a Part's file are released when the
+ * file is cleaned up.
+ */
+public class SpillFilePool implements Closeable {
+    static final String SPILL_SUFFIX = ".spill";
+    private static final String SPILL_PREFIX = "spill-";
+
+    private final File directory;
+    private final int maxRetained;
+    private final DiskBudget.Directory budget;
+    private final ConcurrentLinkedDeque<File> retained = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger retainedCount = new AtomicInteger(0);
+    private volatile boolean closed = false;
+
+    /**
+     * @param directory   where to create the files, or null for the default temporary directory
+     * @param maxRetained the most files to keep for reuse
+     */
+    public SpillFilePool(File directory, int maxRetained) {
+        this.directory = directory;
+        this.maxRetained = maxRetained;
+        this.budget = DiskBudget.shared().directory(directory);
+    }
+
+    /**
+     * @return a pool that creates a file for each Part and deletes it when the Part is closed
+     */
+    public static SpillFilePool unpooled(File directory) {
+        return new SpillFilePool(directory, 0);
+    }
+
+    /**
+     * @return an empty file for a Part to be written to
+     */
+    public File take() throws IOException {
+        File file = retained.pollFirst();
+        if (file != null) {
+            retainedCount.decrementAndGet();
+            return file;
+        }
+        return File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, directory);
+    }
+
+    /**
+     * Empties <code>file</code> and keeps it for another Part, or deletes it if the pool is full or closed.
+     *
+     * @return false if the file couldn't be emptied or deleted
+     */
+    public boolean giveBack(File file) {
+        if (!closed && retainedCount.incrementAndGet() <= maxRetained) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+                retained.addFirst(file);
+                if (!closed) {
+                    return true;
+                }
+                // closed meanwhile, so make sure it is deleted along with the rest
+                if (!retained.remove(file)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                // delete it instead
+            }
+        }
+        retainedCount.decrementAndGet();
+        return file.delete();
+    }
+
+    /**
+     * Reserves <code>bytes</code> about to be written to one of the files.
+     *
+     * @throws DiskBudgetExceededException if that would go over the directory's quota
+     */
+    public void reserve(long bytes) throws DiskBudgetExceededException {
+        budget.reserve(bytes);
+    }
+
+    /**
+     * Releases <code>bytes</code> reserved, once they are no longer on disk.
+     */
+    public void release(long bytes) {
+        budget.release(bytes);
+    }
+
+    /**
+     * @return the number of files kept for reuse
+     */
+    public int retained() {
+        return retainedCount.get();
+    }
+
+    /**
+     * Deletes the files kept. Files given back afterwards are deleted.
+     */
+    @Override public void close() {
+        closed = true;
+        File file;
+        while ((file = retained.pollFirst()) != null) {
+            retainedCount.decrementAndGet();
+            file.delete();
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package org.tiestvilee.multipartform.part;
 
+import org.tiestvilee.multipartform.stream.PartInputStream;
 import org.tiestvilee.multipartform.stream.StreamUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
@@ -24,4 +28,46 @@ public class StreamingPart extends PartMetaData {
         return StreamUtil.readStringFromInputStream(inputStream, encoding, maxPartContentSize);
     }
 
+    /**
+     * Returns the next bytes of the contents as a <code>ByteBuffer</code>. Parts from the parser hand out read-only
+     * views of its buffer without copying, so each one is only valid until the next read. Parts parsed in place
+     * from a <code>ByteBuffer</code> hand out slices of it, which stay valid.
+     *
+     * @return the next bytes of the contents, or null at the end of the contents
+     */
+    public ByteBuffer readSlice() throws IOException {
+        if (inputStream instanceof PartInputStream) {
+            return ((PartInputStream) inputStream).readSlice();
+        }
+        byte[] bytes = new byte[4096];
+        int count = inputStream.read(bytes);
+        return count < 0 ? null : ByteBuffer.wrap(bytes, 0, count).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the rest of the contents to <code>out</code>. Parts from the parser write straight from its buffer,
+     * rather than through a copy, and leave the parser at the start of the next part.
+     *
+     * @return the number of bytes written
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        if (inputStream instanceof PartInputStream) {
+            return ((PartInputStream) inputStream).transferTo(out);
+        }
+        return StreamUtil.transfer(inputStream, out);
+    }
+
+    /**
+     * Writes the rest of the contents to the blocking <code>channel</code>. Parts from the parser hand the channel
+     * views of its buffer, so nothing is copied on the way, and leave the parser at the start of the next part.
+     *
+     * @return the number of bytes written
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        if (inputStream instanceof PartInputStream) {
+            return ((PartInputStream) inputStream).transferTo(channel);
+        }
+        return StreamUtil.transfer(inputStream, channel);
+    }
+
 }
@@ -0,0 +1,63 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Searches the ring buffer of a <code>CircularBufferedInputStream</code> for a token using
+ * the Boyer-Moore-Horspool skip table, so most positions are jumped over without being looked at.
+ */
+public class BoyerMooreHorspool extends TokenSearch {
+    private final int[] skip = new int[256];
+
+    public BoyerMooreHorspool(byte[] token) {
+        super(token);
+
+        int last = token.length - 1;
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = token.length;
+        }
+        for (int i = 0; i < last; i++) {
+            skip[token[i] & 0x0FF] = last - i;
+        }
+    }
+
+    @Override public long firstCandidate(byte[] buffer, long indexMask, long from, long to) {
+        int last = token.length - 1;
+        long position = from;
+        long compared = 0;
+        while (position + last < to) {
+            int i = last;
+            while (buffer[(int) ((position + i) & indexMask)] == token[i]) {
+                if (i == 0) {
+                    comparisons += compared + last + 1;
+                    return position;
+                }
+                i--;
+            }
+            compared += last - i + 2; // the bytes compared, and the skip table lookup
+            position += skip[buffer[(int) ((position + last) & indexMask)] & 0x0FF];
+        }
+        comparisons += compared;
+        return position;
+    }
+
+    @Override protected long firstCandidateWithoutArray(ByteBuffer buffer, long indexMask, long from, long to) {
+        int last = token.length - 1;
+        long position = from;
+        long compared = 0;
+        while (position + last < to) {
+            int i = last;
+            while (buffer.get((int) ((position + i) & indexMask)) == token[i]) {
+                if (i == 0) {
+                    comparisons += compared + last + 1;
+                    return position;
+                }
+                i--;
+            }
+            compared += last - i + 2;
+            position += skip[buffer.get((int) ((position + last) & indexMask)) & 0x0FF];
+        }
+        comparisons += compared;
+        return position;
+    }
+}
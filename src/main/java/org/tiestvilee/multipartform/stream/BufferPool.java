@@ -0,0 +1,220 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of buffers for parsing, so that each form doesn't allocate (and the garbage collector reclaim) its ring
+ * buffer and scratch arrays. Buffers come in power-of-two size classes, up to <code>MAX_POOLED_SIZE</code>; bigger
+ * ones are allocated and dropped as usual.
+ * <br/>
+ * The pool is split into stripes, each with its own lock, and a thread uses the stripe its id picks, so threads
+ * rarely wait for each other. A thread that finds nothing in its own stripe tries the others before allocating, as
+ * buffers are often given back by a different thread than borrowed them. Nothing is kept per thread, so it suits
+ * thread pools and virtual threads alike.
+ * The buffers held are capped at <code>maxPooledBytes</code>; more are dropped when given back.
+ * <br/>
+ * Buffers are zeroed, all of them, when they are given back, so nothing of one request can be read by the next. A
+ * buffer must not be used after it has been given back.
+ */
+public class BufferPool {
+    public static final int MAX_POOLED_SIZE = 16 * 1024 * 1024;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) + 1;
+    private static final byte[] ZEROS = new byte[4096];
+
+    private static final BufferPool SHARED = new BufferPool(
+        Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2, 32 * 1024 * 1024);
+
+    private final Stripe[] stripes;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * @param stripes        how many independently locked parts to split the pool into, rounded up to a power of two
+     * @param maxPooledBytes the most bytes of buffers to hold
+     */
+    public BufferPool(int stripes, long maxPooledBytes) {
+        this.stripes = new Stripe[stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @return the pool used by the parsers in this library
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return a zeroed array of at least <code>minimumSize</code> bytes, a power of two long unless it is bigger
+     * than <code>MAX_POOLED_SIZE</code>
+     */
+    public byte[] borrow(int minimumSize) {
+        int sizeClass = sizeClass(minimumSize);
+        if (sizeClass < 0) {
+            misses.incrementAndGet();
+            return new byte[minimumSize];
+        }
+        byte[] buffer = null;
+        int first = stripeIndex();
+        for (int i = 0; i < stripes.length && buffer == null; i++) {
+            Stripe stripe = stripes[(first + i) & (stripes.length - 1)];
+            synchronized (stripe) {
+                buffer = stripe.heap[sizeClass] == null ? null : stripe.heap[sizeClass].pollFirst();
+            }
+        }
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return new byte[1 << sizeClass];
+        }
+        hits.incrementAndGet();
+        pooledBytes.addAndGet(-buffer.length);
+        return buffer;
+    }
+
+    /**
+     * As <code>borrow(int)</code>, for a direct buffer, with its position at 0 and its limit at its capacity.
+     */
+    public ByteBuffer borrowDirect(int minimumSize) {
+        int sizeClass = sizeClass(minimumSize);
+        if (sizeClass < 0) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(minimumSize);
+        }
+        ByteBuffer buffer = null;
+        int first = stripeIndex();
+        for (int i = 0; i < stripes.length && buffer == null; i++) {
+            Stripe stripe = stripes[(first + i) & (stripes.length - 1)];
+            synchronized (stripe) {
+                buffer = stripe.direct[sizeClass] == null ? null : stripe.direct[sizeClass].pollFirst();
+            }
+        }
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(1 << sizeClass);
+        }
+        hits.incrementAndGet();
+        pooledBytes.addAndGet(-buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * Zeroes <code>buffer</code> and keeps it for another borrower, if the pool has room.
+     */
+    public void giveBack(byte[] buffer) {
+        int sizeClass = pooledSizeClass(buffer.length);
+        if (sizeClass < 0) {
+            return;
+        }
+        Arrays.fill(buffer, (byte) 0);
+        Stripe stripe = stripes[stripeIndex()];
+        synchronized (stripe) {
+            if (stripe.heap[sizeClass] == null) {
+                stripe.heap[sizeClass] = new ArrayDeque<>();
+            }
+            stripe.heap[sizeClass].addFirst(buffer);
+        }
+    }
+
+    /**
+     * Zeroes the direct <code>buffer</code> and keeps it for another borrower, if the pool has room.
+     */
+    public void giveBack(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Only direct buffers can be given back; give back the array of a heap buffer");
+        }
+        int sizeClass = pooledSizeClass(buffer.capacity());
+        if (sizeClass < 0) {
+            return;
+        }
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        }
+        buffer.clear();
+        Stripe stripe = stripes[stripeIndex()];
+        synchronized (stripe) {
+            if (stripe.direct[sizeClass] == null) {
+                stripe.direct[sizeClass] = new ArrayDeque<>();
+            }
+            stripe.direct[sizeClass].addFirst(buffer);
+        }
+    }
+
+    /**
+     * @return the bytes of buffers held by the pool, waiting to be borrowed
+     */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return how many borrows were given a pooled buffer
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many borrows had to allocate a buffer
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many buffers given back were dropped, because the pool was full or they were too big
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the size class of a buffer of <code>size</code> if it can be pooled and there is room for it,
+     * having counted it in, otherwise -1
+     */
+    private int pooledSizeClass(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0 || size != 1 << sizeClass) {
+            dropped.incrementAndGet();
+            return -1;
+        }
+        if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+            pooledBytes.addAndGet(-size);
+            dropped.incrementAndGet();
+            return -1;
+        }
+        return sizeClass;
+    }
+
+    private static int sizeClass(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (stripes.length - 1);
+    }
+
+    private static class Stripe {
+        // allocated as size classes are first used
+        final ArrayDeque<byte[]>[] heap = sizeClasses();
+        final ArrayDeque<ByteBuffer>[] direct = sizeClasses();
+
+        @SuppressWarnings("unchecked")
+        private static <T> ArrayDeque<T>[] sizeClasses() {
+            return (ArrayDeque<T>[]) new ArrayDeque<?>[SIZE_CLASSES];
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the bytes between the position and the limit of a <code>ByteBuffer</code>. The buffer's position is
+ * moved as bytes are read, so pass in a duplicate if it is shared.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private int mark;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.mark = buffer.position();
+    }
+
+    @Override public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0x0FF;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int length = Math.min(len, buffer.remaining());
+        buffer.get(b, off, length);
+        return length;
+    }
+
+    @Override public long skip(long n) {
+        int length = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    @Override public int available() {
+        return buffer.remaining();
+    }
+
+    @Override public boolean markSupported() {
+        return true;
+    }
+
+    @Override public synchronized void mark(int readlimit) {
+        mark = buffer.position();
+    }
+
+    @Override public synchronized void reset() {
+        buffer.position(mark);
+    }
+}
@@ -0,0 +1,243 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Bytes held in a list of chunks, which grows only as far as the bytes need. The first chunk is small and each one
+ * after is twice as big, up to <code>MAX_CHUNK_SIZE</code>, so a short field takes one small chunk and a long one
+ * isn't spread over thousands of them. Nothing is copied to grow it.
+ * <br/>
+ * Bytes read only to be used and let go of borrow their chunks from a <code>BufferPool</code>. <code>release()</code>
+ * gives them back, after which nothing more can be read, and any views or streams of them must no longer be used.
+ * Bytes that are handed on, to be read by anyone for as long as they like, are kept in chunks allocated without a
+ * pool, as the pool would never get them back. Those are garbage collected once nothing refers to them, and
+ * <code>release()</code> leaves them readable.
+ * <br/>
+ * Given a <code>MemoryBudget</code>, each chunk is reserved against it before it is borrowed or allocated, and the reservations
+ * are released along with the chunks, or when the ChunkedBytes is garbage collected without being released.
+ * Reading stops short of the limit if the budget is tight.
+ */
+public class ChunkedBytes {
+    static final int FIRST_CHUNK_SIZE = 256;
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private final BufferPool pool;
+    private final MemoryBudget budget;
+    private final MemoryBudget.Reservation reservation;
+    private byte[][] chunks = new byte[4][];
+    private int chunkCount = 0;
+    private int usedInLastChunk = 0;
+    private int length = 0;
+    private volatile boolean released = false;
+
+    public ChunkedBytes() {
+        this(BufferPool.shared());
+    }
+
+    public ChunkedBytes(BufferPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * @param pool   to borrow the chunks from, or null to allocate them, for bytes that will be handed on
+     * @param budget to reserve the chunks against, or null to hold them without reserving them
+     */
+    public ChunkedBytes(BufferPool pool, MemoryBudget budget) {
+        this.pool = pool;
+        this.budget = budget;
+        this.reservation = budget == null ? null : budget.reservationFor(this);
+    }
+
+    /**
+     * Reads <code>inputStream</code> until it ends, or until <code>limit</code> bytes are held, or fewer if the
+     * budget can't spare that many.
+     *
+     * @return true if the stream ended, false if it was stopped first
+     */
+    public boolean readFrom(InputStream inputStream, int limit) throws IOException {
+        checkNotReleased();
+        int allowed = budget == null ? limit : Math.min(limit, Math.max(length, budget.inMemoryLimit(limit)));
+        while (length < allowed) {
+            if ((chunkCount == 0 || usedInLastChunk == chunks[chunkCount - 1].length) && !addChunk(allowed - length)) {
+                break;
+            }
+            byte[] chunk = chunks[chunkCount - 1];
+            int count = inputStream.read(chunk, usedInLastChunk, Math.min(chunk.length - usedInLastChunk, limit - length));
+            if (count < 0) {
+                return true;
+            }
+            usedInLastChunk += count;
+            length += count;
+        }
+        if (budget != null && length < limit) {
+            budget.countSpilledEarly();
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of bytes held
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return a copy of the bytes held
+     */
+    public byte[] toByteArray() {
+        checkNotReleased();
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            int count = used(i);
+            System.arraycopy(chunks[i], 0, result, offset, count);
+            offset += count;
+        }
+        return result;
+    }
+
+    /**
+     * @return the bytes held, decoded with <code>encoding</code>
+     */
+    public String toString(Charset encoding) {
+        checkNotReleased();
+        if (chunkCount <= 1) {
+            return new String(chunkCount == 0 ? new byte[0] : chunks[0], 0, length, encoding);
+        }
+        // a character can span two chunks, so decode them together
+        return new String(toByteArray(), encoding);
+    }
+
+    /**
+     * @return a read-only view of each chunk, from its start to the end of the bytes held in it
+     */
+    public ByteBuffer[] buffers() {
+        checkNotReleased();
+        ByteBuffer[] buffers = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            buffers[i] = ByteBuffer.wrap(chunks[i], 0, used(i)).slice().asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    /**
+     * @return a stream of the bytes held, which reads the chunks themselves
+     */
+    public InputStream inputStream() {
+        checkNotReleased();
+        return new ChunksInputStream();
+    }
+
+    /**
+     * @return true if the chunks are borrowed from a pool, so must not be used once released
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Gives the chunks back to the pool, if they came from one, and releases their reservations. Does nothing if
+     * they already have been.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (pool != null) {
+            for (int i = 0; i < chunkCount; i++) {
+                pool.giveBack(chunks[i]);
+                chunks[i] = null;
+            }
+        }
+        if (reservation != null) {
+            reservation.release();
+        }
+    }
+
+    /**
+     * @return false if the budget can't spare another chunk
+     */
+    private boolean addChunk(int stillWanted) {
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        int size = chunkCount >= 9 ? MAX_CHUNK_SIZE : Math.min(MAX_CHUNK_SIZE, FIRST_CHUNK_SIZE << chunkCount);
+        int wanted = Math.min(size, stillWanted);
+        // the pool hands out whole powers of two, so reserve what it will hand out
+        int allocated = pool == null || wanted <= 1 ? Math.max(wanted, 1) : Integer.highestOneBit(wanted - 1) << 1;
+        if (reservation != null && !reservation.tryReserve(allocated)) {
+            return false;
+        }
+        chunks[chunkCount++] = pool == null ? new byte[allocated] : pool.borrow(wanted);
+        usedInLastChunk = 0;
+        return true;
+    }
+
+    private int used(int chunk) {
+        return chunk == chunkCount - 1 ? usedInLastChunk : chunks[chunk].length;
+    }
+
+    private void checkNotReleased() {
+        if (released && pool != null) {
+            throw new IllegalStateException("The bytes have been released");
+        }
+    }
+
+    private class ChunksInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+        private int chunk = 0;
+        private int position = 0;
+
+        @Override public int read() {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0x0FF;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+            checkNotReleased();
+            while (chunk < chunkCount && position == used(chunk)) {
+                chunk++;
+                position = 0;
+            }
+            if (chunk >= chunkCount) {
+                return -1;
+            }
+            int count = Math.min(len, used(chunk) - position);
+            System.arraycopy(chunks[chunk], position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override public long skip(long n) {
+            long skipped = 0;
+            while (skipped < n && chunk < chunkCount) {
+                int count = (int) Math.min(n - skipped, used(chunk) - position);
+                position += count;
+                skipped += count;
+                if (position == used(chunk)) {
+                    chunk++;
+                    position = 0;
+                }
+            }
+            return skipped;
+        }
+
+        @Override public int available() {
+            int available = 0;
+            for (int i = chunk; i < chunkCount; i++) {
+                available += used(i);
+            }
+            return available - position;
+        }
+    }
+}
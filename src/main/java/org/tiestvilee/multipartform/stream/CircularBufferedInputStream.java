@@ -2,27 +2,77 @@ package org.tiestvilee.multipartform.stream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.InvalidMarkException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 
 public class CircularBufferedInputStream extends InputStream {
     private static final boolean DEBUG = false;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    private static final int STAGING_SIZE = 8192;
     private final int bufferSize;
-    private final long bufferIndexMask;
-    private final byte[] buffer;
-    private final InputStream inputStream;
+    protected final long bufferIndexMask;
+    protected ByteBuffer buffer;
+    private InputStream inputStream;
+    private ReadableByteChannel channel;
+    // the whole stream is in the buffer, so there is nothing to read and slices of it stay valid
+    private final boolean flat;
+    // the ring buffer is direct, so an InputStream is read through the staging array, borrowed when first needed
+    private final boolean direct;
+    private byte[] staging;
+    // views of the buffer, for copying out, reading from the channel and handing out slices
+    private ByteBuffer copyView;
+    private ByteBuffer[] channelViews;
+    private ByteBuffer sliceView;
+    // where a ring buffer was borrowed from, until it is given back
+    private BufferPool pool;
 
     protected long cursor;
-    private long rightBounds;
+    protected long rightBounds;
     private long leftBounds;
     private long readLimit;
     private boolean markInvalid;
     private boolean EOS;
 
     public CircularBufferedInputStream(InputStream inputStream, int maxExpectedBufSize) {
+        this(inputStream, null, maxExpectedBufSize, false);
+    }
+
+    /**
+     * @param directBuffer whether the ring buffer is a direct <code>ByteBuffer</code>, off the heap. The stream is
+     *                     then read through a small array on the heap, as an <code>InputStream</code> can only read
+     *                     into arrays.
+     */
+    public CircularBufferedInputStream(InputStream inputStream, int maxExpectedBufSize, boolean directBuffer) {
+        this(inputStream, null, maxExpectedBufSize, directBuffer);
+    }
+
+    /**
+     * Buffers a blocking <code>channel</code>. Reads go straight from the channel into the buffer; where the free
+     * space wraps around the end of the buffer a <code>ScatteringByteChannel</code> fills both ends in one read.
+     */
+    public CircularBufferedInputStream(ReadableByteChannel channel, int maxExpectedBufSize) {
+        this(null, channel, maxExpectedBufSize, false);
+    }
+
+    /**
+     * @param directBuffer whether the ring buffer is a direct <code>ByteBuffer</code>, off the heap. The channel
+     *                     then reads straight into it, rather than through a temporary direct buffer of its own.
+     */
+    public CircularBufferedInputStream(ReadableByteChannel channel, int maxExpectedBufSize, boolean directBuffer) {
+        this(null, channel, maxExpectedBufSize, directBuffer);
+    }
+
+    private CircularBufferedInputStream(InputStream inputStream, ReadableByteChannel channel, int maxExpectedBufSize, boolean directBuffer) {
         this.bufferSize = Integer.highestOneBit(maxExpectedBufSize) * 2;
         this.bufferIndexMask = bufferSize - 1;
-        this.buffer = new byte[bufferSize];
         this.inputStream = inputStream;
+        this.channel = channel;
+        this.flat = false;
+        this.direct = directBuffer;
+        borrowBuffer();
         this.cursor = 0;
         this.rightBounds = 0;
         this.leftBounds = 0;
@@ -31,10 +81,95 @@ public class CircularBufferedInputStream extends InputStream {
         this.EOS = false;
     }
 
+    /**
+     * Reads the bytes from the position to the limit of <code>contents</code> in place, without copying them into
+     * a ring buffer. <code>contents</code> can be on the heap, direct or memory-mapped from a file. Stream positions
+     * are indexes in <code>contents</code>, and slices handed out stay valid as long as <code>contents</code> does.
+     */
+    public CircularBufferedInputStream(ByteBuffer contents) {
+        this.bufferSize = Integer.MAX_VALUE; // everything is buffered, so any mark can be reset
+        this.bufferIndexMask = -1L;
+        this.buffer = contents;
+        this.inputStream = null;
+        this.channel = null;
+        this.flat = true;
+        this.direct = contents.isDirect();
+        this.pool = null;
+        this.copyView = buffer.duplicate();
+        this.channelViews = null;
+        this.sliceView = null;
+        this.cursor = contents.position();
+        this.rightBounds = contents.limit();
+        this.leftBounds = cursor;
+        this.readLimit = 0;
+        this.markInvalid = false;
+        this.EOS = true;
+    }
+
+    /**
+     * Starts again on <code>inputStream</code> or <code>channel</code> (one of them null), keeping the buffer, so
+     * it can be reused for another stream. Anything buffered from the last stream is dropped. With both null the
+     * stream is at its end until it is restarted again.
+     */
+    protected void restart(InputStream inputStream, ReadableByteChannel channel) {
+        if (flat) {
+            throw new IllegalStateException("Cannot restart a stream read in place from a ByteBuffer");
+        }
+        if (pool == null) {
+            borrowBuffer();
+        }
+        this.inputStream = inputStream;
+        this.channel = channel;
+        this.cursor = 0;
+        this.rightBounds = 0;
+        this.leftBounds = 0;
+        this.readLimit = 0;
+        this.markInvalid = false;
+        this.EOS = inputStream == null && channel == null;
+    }
+
+    private void borrowBuffer() {
+        this.pool = BufferPool.shared();
+        this.buffer = direct ? pool.borrowDirect(bufferSize) : ByteBuffer.wrap(pool.borrow(bufferSize));
+        this.copyView = buffer.duplicate();
+        this.channelViews = new ByteBuffer[]{buffer.duplicate(), buffer.duplicate()};
+        this.sliceView = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gives a ring buffer back to the pool it was borrowed from, once nothing more will be read. The stream is
+     * then at its end, and any views of the buffer handed out must no longer be used.
+     */
+    public void releaseBuffer() {
+        if (pool == null) {
+            return;
+        }
+        ByteBuffer released = buffer;
+        buffer = EMPTY;
+        copyView = EMPTY;
+        channelViews = new ByteBuffer[]{EMPTY, EMPTY};
+        sliceView = EMPTY;
+        inputStream = null;
+        channel = null;
+        cursor = rightBounds;
+        leftBounds = rightBounds;
+        EOS = true;
+        if (direct) {
+            pool.giveBack(released);
+        } else {
+            pool.giveBack(released.array());
+        }
+        if (staging != null) {
+            pool.giveBack(staging);
+            staging = null;
+        }
+        pool = null;
+    }
+
     @Override public int read() throws IOException {
         dumpState(">>> READ");
 
-        if (EOS) {
+        if (EOS && cursor == rightBounds) {
             return -1;
         }
         int result = read1();
@@ -50,7 +185,7 @@ public class CircularBufferedInputStream extends InputStream {
                 return -1;
             }
         }
-        return buffer[(int) (cursor++ & bufferIndexMask)] & 0x0FF;
+        return buffer.get((int) (cursor++ & bufferIndexMask)) & 0x0FF;
     }
 
     @Override public int read(byte[] b, int off, int len) throws IOException {
@@ -62,32 +197,122 @@ public class CircularBufferedInputStream extends InputStream {
             return 0;
         }
 
-        if (EOS) {
-            return -1;
+        int count = 0;
+        while (count < len) {
+            while (cursor == rightBounds) {
+                if (!readMore()) {
+                    return count == 0 ? -1 : count;
+                }
+            }
+            int length = (int) Math.min(len - count, rightBounds - cursor);
+            copyFromBuffer(b, off + count, length);
+            count += length;
         }
 
-        for (int i = 0; i < len; i++) {
-            int result = read1();
-            if (result == -1) {
-                return i;
+        return len;
+    }
+
+    /**
+     * Copies <code>length</code> buffered bytes from the cursor into <code>b</code>, and moves the cursor past them.
+     * There must be at least <code>length</code> bytes buffered after the cursor.
+     */
+    protected void copyFromBuffer(byte[] b, int off, int length) {
+        int index = (int) (cursor & bufferIndexMask);
+        int untilEndOfBuffer = Math.min(length, buffer.capacity() - index);
+        copyView.limit(index + untilEndOfBuffer);
+        copyView.position(index);
+        copyView.get(b, off, untilEndOfBuffer);
+        if (untilEndOfBuffer < length) {
+            copyView.limit(length - untilEndOfBuffer);
+            copyView.position(0);
+            copyView.get(b, off + untilEndOfBuffer, length - untilEndOfBuffer);
+        }
+        cursor += length;
+    }
+
+    /**
+     * As <code>copyFromBuffer(byte[], int, int)</code>, putting the bytes into <code>dst</code>, which must have room
+     * for them.
+     */
+    protected void copyFromBuffer(ByteBuffer dst, int length) {
+        int index = (int) (cursor & bufferIndexMask);
+        int untilEndOfBuffer = Math.min(length, buffer.capacity() - index);
+        copyView.limit(index + untilEndOfBuffer);
+        copyView.position(index);
+        dst.put(copyView);
+        if (untilEndOfBuffer < length) {
+            copyView.limit(length - untilEndOfBuffer);
+            copyView.position(0);
+            dst.put(copyView);
+        }
+        cursor += length;
+    }
+
+    /**
+     * Writes <code>length</code> buffered bytes from the cursor to <code>out</code>, and moves the cursor past them.
+     * The bytes must not wrap around the end of the buffer. A buffer backed by an array is written from the array;
+     * others are copied out a chunk at a time.
+     */
+    protected void writeFromBuffer(OutputStream out, int length) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + (int) (cursor & bufferIndexMask), length);
+            cursor += length;
+            return;
+        }
+        byte[] chunk = BufferPool.shared().borrow(Math.min(length, StreamUtil.TRANSFER_CHUNK_SIZE));
+        try {
+            int written = 0;
+            while (written < length) {
+                int n = Math.min(chunk.length, length - written);
+                copyFromBuffer(chunk, 0, n);
+                out.write(chunk, 0, n);
+                written += n;
             }
-            b[i + off] = (byte) result;
+        } finally {
+            BufferPool.shared().giveBack(chunk);
         }
+    }
 
-        return len;
+    /**
+     * Returns a view of <code>length</code> buffered bytes from the cursor, and moves the cursor past them.
+     * The bytes must not wrap around the end of the buffer. A ring buffer reuses a read-only view, so it is only
+     * valid until the next read. A flat buffer returns a new slice that stays valid and, like the caller's buffer,
+     * may be writable and backed by an array.
+     */
+    protected ByteBuffer sliceFromBuffer(int length) {
+        int index = (int) (cursor & bufferIndexMask);
+        cursor += length;
+        ByteBuffer view = flat ? buffer.duplicate() : sliceView;
+        view.limit(index + length);
+        view.position(index);
+        return flat ? view.slice() : view;
     }
 
     private boolean readMore() throws IOException {
+        if (EOS) {
+            return false;
+        }
+
+        // move mark if past readLimit, or if it is pinning a full buffer we need to read past
+        if (cursor - leftBounds > readLimit || (cursor == rightBounds && rightBounds - leftBounds == bufferSize)) {
+            leftBounds = cursor;
+            readLimit = 0;
+            markInvalid = true;
+        }
+
         long rightIndex = rightBounds & bufferIndexMask;
-        long leftIndex = leftBounds & bufferIndexMask;
+        long freeSpace = bufferSize - (rightBounds - leftBounds);
 
-        int readThisManyBytes = leftIndex > rightIndex ? (int) (leftIndex - rightIndex) : (int) (buffer.length - rightIndex);
+        int readThisManyBytes = (int) Math.min(freeSpace, bufferSize - rightIndex);
+        if (readThisManyBytes == 0) {
+            return false; // buffer is full
+        }
 
-        int readBytes = inputStream.read(
-            buffer,
-            (int) rightIndex,
-            readThisManyBytes
-        );
+        int readBytes = channel != null
+            ? readFromChannel((int) rightIndex, readThisManyBytes, (int) freeSpace - readThisManyBytes)
+            : direct
+            ? readThroughStaging((int) rightIndex, readThisManyBytes)
+            : inputStream.read(buffer.array(), (int) rightIndex, readThisManyBytes);
 
         if (readBytes < 0) {
             EOS = true;
@@ -95,14 +320,51 @@ public class CircularBufferedInputStream extends InputStream {
         }
         rightBounds += readBytes;
 
-        // move mark if past readLimit
-        if (cursor - leftBounds > readLimit) {
-            leftBounds = cursor;
-            readLimit = 0;
-            markInvalid = true;
+        return true;
+    }
+
+    private int readFromChannel(int rightIndex, int untilEndOfBuffer, int fromStartOfBuffer) throws IOException {
+        ByteBuffer end = channelViews[0];
+        end.clear();
+        end.position(rightIndex);
+        end.limit(rightIndex + untilEndOfBuffer);
+        if (fromStartOfBuffer == 0 || !(channel instanceof ScatteringByteChannel)) {
+            return channel.read(end);
         }
+        ByteBuffer start = channelViews[1];
+        start.clear();
+        start.limit(fromStartOfBuffer);
+        return (int) ((ScatteringByteChannel) channel).read(channelViews);
+    }
 
-        return true;
+    private int readThroughStaging(int rightIndex, int untilEndOfBuffer) throws IOException {
+        if (staging == null) {
+            staging = pool.borrow(Math.min(STAGING_SIZE, bufferSize));
+        }
+        int readBytes = inputStream.read(staging, 0, Math.min(untilEndOfBuffer, staging.length));
+        if (readBytes > 0) {
+            ByteBuffer end = channelViews[0];
+            end.clear();
+            end.position(rightIndex);
+            end.put(staging, 0, readBytes);
+        }
+        return readBytes;
+    }
+
+    /**
+     * Reads ahead from the underlying stream until at least <code>minimumBytes</code> are buffered after the
+     * cursor, the buffer is full, or the underlying stream ends. Reading ahead never moves the cursor.
+     *
+     * @param minimumBytes number of bytes wanted after the cursor
+     * @return the number of bytes buffered after the cursor
+     */
+    protected int bufferAhead(int minimumBytes) throws IOException {
+        while (rightBounds - cursor < minimumBytes) {
+            if (!readMore()) {
+                break;
+            }
+        }
+        return (int) (rightBounds - cursor);
     }
 
     @Override public int available() throws IOException {
@@ -148,9 +410,9 @@ public class CircularBufferedInputStream extends InputStream {
                     "c=" + cursor + "(" + (cursor & bufferIndexMask) + ") " +
                     "r=" + rightBounds + "(" + (rightBounds & bufferIndexMask) + ") '" +
                     "rl=" + readLimit + " " +
-                    (char) buffer[(int) (cursor & bufferIndexMask)] + "'");
-            for (byte b : buffer) {
-                System.out.print((char) b);
+                    (char) buffer.get((int) (cursor & bufferIndexMask)) + "'");
+            for (int i = 0; i < buffer.limit(); i++) {
+                System.out.print((char) buffer.get(i));
             }
             System.out.println();
         }
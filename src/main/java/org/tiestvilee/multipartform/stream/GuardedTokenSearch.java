@@ -0,0 +1,79 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a fast search, but switches to <code>KnuthMorrisPratt</code> for the rest of the stream if the fast
+ * search starts doing more than a few comparisons per byte. Bodies crafted against the fast search (lots of
+ * near-miss boundaries) then cost a bounded amount of work per byte instead of work that grows with the
+ * length of the boundary.
+ * <br/>
+ * <code>reset()</code> keeps the linear search once switched to, as the stream is the same one. <code>restart()</code>
+ * goes back to the fast search, so one crafted body doesn't slow down the streams searched after it.
+ */
+public class GuardedTokenSearch extends TokenSearch {
+    private static final int COMPARISONS_PER_BYTE = 1;
+
+    private final TokenSearch fast;
+    private TokenSearch linear = null;
+
+    public GuardedTokenSearch(TokenSearch fast) {
+        super(fast.token());
+        this.fast = fast;
+    }
+
+    @Override public void reset() {
+        fast.reset();
+        if (linear != null) {
+            linear.reset();
+        }
+    }
+
+    @Override public void restart() {
+        fast.reset();
+        linear = null;
+    }
+
+    @Override public long firstCandidate(byte[] buffer, long indexMask, long from, long to) {
+        if (linear != null) {
+            return countComparisons(linear, buffer, indexMask, from, to);
+        }
+
+        long before = comparisons;
+        return checkWorkDone(before, from, countComparisons(fast, buffer, indexMask, from, to));
+    }
+
+    @Override protected long firstCandidateWithoutArray(ByteBuffer buffer, long indexMask, long from, long to) {
+        if (linear != null) {
+            return countComparisons(linear, buffer, indexMask, from, to);
+        }
+
+        long before = comparisons;
+        return checkWorkDone(before, from, countComparisons(fast, buffer, indexMask, from, to));
+    }
+
+    private long checkWorkDone(long before, long from, long candidate) {
+        if (comparisons - before > COMPARISONS_PER_BYTE * (candidate - from) + 2 * token.length) {
+            linear = new KnuthMorrisPratt(token);
+        }
+        return candidate;
+    }
+
+    public boolean hasSwitchedToLinearSearch() {
+        return linear != null;
+    }
+
+    private long countComparisons(TokenSearch search, byte[] buffer, long indexMask, long from, long to) {
+        long before = search.comparisons;
+        long candidate = search.firstCandidate(buffer, indexMask, from, to);
+        comparisons += search.comparisons - before;
+        return candidate;
+    }
+
+    private long countComparisons(TokenSearch search, ByteBuffer buffer, long indexMask, long from, long to) {
+        long before = search.comparisons;
+        long candidate = search.firstCandidateWithoutArray(buffer, indexMask, from, to);
+        comparisons += search.comparisons - before;
+        return candidate;
+    }
+}
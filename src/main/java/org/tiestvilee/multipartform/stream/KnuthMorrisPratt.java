@@ -0,0 +1,127 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Searches the ring buffer for a token with the Knuth-Morris-Pratt algorithm. It remembers how much of the
+ * token it has matched at the end of the last search, and carries on from there, so no byte of the stream is
+ * looked at twice however many partial tokens it contains. The search is tied to one stream.
+ */
+public class KnuthMorrisPratt extends TokenSearch {
+    private final int[] failure;
+
+    // positions from scannedFrom up to (scannedTo - matched) are known not to start the token
+    private long scannedFrom = -1;
+    private long scannedTo = -1;
+    private int matched;
+
+    public KnuthMorrisPratt(byte[] token) {
+        super(token);
+
+        failure = new int[token.length];
+        int k = 0;
+        for (int i = 1; i < token.length; i++) {
+            while (k > 0 && token[i] != token[k]) {
+                k = failure[k - 1];
+            }
+            if (token[i] == token[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+    }
+
+    @Override public void reset() {
+        scannedFrom = -1;
+        scannedTo = -1;
+        matched = 0;
+    }
+
+    @Override public long firstCandidate(byte[] buffer, long indexMask, long from, long to) {
+        if (from < scannedFrom || from > scannedTo - matched) {
+            scannedFrom = from;
+            scannedTo = from;
+            matched = 0;
+        }
+        if (matched == token.length) {
+            return scannedTo - matched;
+        }
+
+        long position = scannedTo;
+        int m = matched;
+        long compared = 0;
+        while (position < to) {
+            if (m == 0) {
+                while (position < to && buffer[(int) (position & indexMask)] != token[0]) {
+                    position++;
+                    compared++;
+                }
+                if (position == to) {
+                    break;
+                }
+            }
+            byte b = buffer[(int) (position & indexMask)];
+            while (m > 0 && token[m] != b) {
+                m = failure[m - 1];
+                compared++;
+            }
+            if (token[m] == b) {
+                m++;
+            }
+            position++;
+            compared++;
+            if (m == token.length) {
+                break;
+            }
+        }
+
+        comparisons += compared;
+        scannedTo = position;
+        matched = m;
+        return position - m;
+    }
+
+    @Override protected long firstCandidateWithoutArray(ByteBuffer buffer, long indexMask, long from, long to) {
+        if (from < scannedFrom || from > scannedTo - matched) {
+            scannedFrom = from;
+            scannedTo = from;
+            matched = 0;
+        }
+        if (matched == token.length) {
+            return scannedTo - matched;
+        }
+
+        long position = scannedTo;
+        int m = matched;
+        long compared = 0;
+        while (position < to) {
+            if (m == 0) {
+                while (position < to && buffer.get((int) (position & indexMask)) != token[0]) {
+                    position++;
+                    compared++;
+                }
+                if (position == to) {
+                    break;
+                }
+            }
+            byte b = buffer.get((int) (position & indexMask));
+            while (m > 0 && token[m] != b) {
+                m = failure[m - 1];
+                compared++;
+            }
+            if (token[m] == b) {
+                m++;
+            }
+            position++;
+            compared++;
+            if (m == token.length) {
+                break;
+            }
+        }
+
+        comparisons += compared;
+        scannedTo = position;
+        matched = m;
+        return position - m;
+    }
+}
@@ -0,0 +1,212 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.tiestvilee.multipartform.exceptions.MemoryBudgetExceededException;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory that Parts kept in memory may hold between them, across every form being parsed. The chunks of an
+ * in-memory Part are reserved against the budget as they are read, and released when the Part is closed, or once it
+ * has been garbage collected if it never is. Collected reservations are released by the next caller of the budget,
+ * rather than by a thread of its own.
+ * <br/>
+ * A Part that can't reserve its next chunk goes to disk instead, and once more than three quarters of the budget is
+ * reserved Parts go to disk at a threshold that shrinks as the budget fills, so a crowd of requests each just under
+ * the threshold can't use up the heap. <code>admit(long)</code> refuses a request up front if its declared length
+ * doesn't fit in what is left, though it reserves nothing, so requests admitted at the same time all pass against
+ * the same amount left, and may not all fit once they are read.
+ * <br/>
+ * The shared budget, used by <code>MultipartFormMap</code>, has no limit until one is set, but still counts what is
+ * reserved, so that the limit can be sized from <code>reserved()</code> and <code>peakReserved()</code>.
+ */
+public class MemoryBudget {
+    private static final MemoryBudget SHARED = new MemoryBudget(Long.MAX_VALUE);
+
+    private volatile long limit;
+    private final AtomicLong reserved = new AtomicLong(0);
+    private final AtomicLong peakReserved = new AtomicLong(0);
+    private final AtomicLong spilledEarly = new AtomicLong(0);
+    private final AtomicLong refused = new AtomicLong(0);
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    // keeps the references reachable until they have been released
+    private final Set<Reservation> held = ConcurrentHashMap.newKeySet();
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return the budget used by <code>MultipartFormMap</code>
+     */
+    public static MemoryBudget shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets the most bytes to reserve. Reservations already made are kept, even if they are now over the limit.
+     */
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    /**
+     * Refuses a request that declares it is <code>contentLength</code> long, if that doesn't fit in what is left of
+     * the budget. Nothing is reserved; the Parts reserve what they use as they are read. So requests admitted at the
+     * same time are each checked against the same amount left, and between them may not fit.
+     *
+     * @throws MemoryBudgetExceededException if it doesn't fit
+     */
+    public void admit(long contentLength) throws MemoryBudgetExceededException {
+        releaseCollected();
+        long available = available();
+        if (contentLength > available) {
+            refused.incrementAndGet();
+            throw new MemoryBudgetExceededException("Request of " + contentLength + " bytes doesn't fit in the " + available + " bytes of memory left");
+        }
+    }
+
+    /**
+     * @return the most bytes of a Part to keep in memory, given that Parts of
+     * <code>writeToDiskThreshold</code> would go to disk anyway. Less than that when the budget is tight.
+     */
+    public int inMemoryLimit(int writeToDiskThreshold) {
+        long limit = this.limit;
+        long tight = limit - limit / 4;
+        releaseCollected();
+        long reserved = this.reserved.get();
+        if (reserved <= tight) {
+            return writeToDiskThreshold;
+        }
+        long left = Math.max(0, limit - reserved);
+        return (int) Math.min(writeToDiskThreshold, (double) writeToDiskThreshold * left / Math.max(1, limit - tight));
+    }
+
+    /**
+     * Reserves <code>bytes</code>, if that keeps within the limit.
+     *
+     * @return false if it doesn't, having reserved nothing
+     */
+    public boolean tryReserve(long bytes) {
+        releaseCollected();
+        while (true) {
+            long current = reserved.get();
+            long next = current + bytes;
+            if (next > limit || next < 0) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, next)) {
+                peakReserved.accumulateAndGet(next, Math::max);
+                return true;
+            }
+        }
+    }
+
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * @return a reservation for <code>owner</code> to reserve into, which is released in one go when the owner is
+     * done with it, or when the owner is garbage collected
+     */
+    public Reservation reservationFor(Object owner) {
+        Reservation reservation = new Reservation(owner);
+        held.add(reservation);
+        return reservation;
+    }
+
+    private void releaseCollected() {
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            ((Reservation) reference).release();
+        }
+    }
+
+    void countSpilledEarly() {
+        spilledEarly.incrementAndGet();
+    }
+
+    /**
+     * @return the bytes currently reserved
+     */
+    public long reserved() {
+        releaseCollected();
+        return reserved.get();
+    }
+
+    /**
+     * @return the most bytes that have been reserved at once
+     */
+    public long peakReserved() {
+        return peakReserved.get();
+    }
+
+    /**
+     * @return the bytes that can still be reserved
+     */
+    public long available() {
+        releaseCollected();
+        return Math.max(0, limit - reserved.get());
+    }
+
+    /**
+     * @return how many Parts stopped being read into memory before their threshold because the budget was tight
+     */
+    public long spilledEarly() {
+        return spilledEarly.get();
+    }
+
+    /**
+     * @return how many requests <code>admit(long)</code> refused
+     */
+    public long refused() {
+        return refused.get();
+    }
+
+    /**
+     * Bytes reserved by one owner, such as the chunks of a Part.
+     */
+    public final class Reservation extends PhantomReference<Object> {
+        private long bytes = 0;
+        private boolean released = false;
+
+        private Reservation(Object owner) {
+            super(owner, collected);
+        }
+
+        /**
+         * Adds <code>bytes</code> to the reservation, if that keeps the budget within its limit.
+         *
+         * @return false if it doesn't, or if the reservation has been released
+         */
+        public synchronized boolean tryReserve(long bytes) {
+            if (released || !MemoryBudget.this.tryReserve(bytes)) {
+                return false;
+            }
+            this.bytes += bytes;
+            return true;
+        }
+
+        /**
+         * Releases everything reserved. Does nothing if it already has been.
+         */
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            held.remove(this);
+            MemoryBudget.this.release(bytes);
+            bytes = 0;
+        }
+    }
+}
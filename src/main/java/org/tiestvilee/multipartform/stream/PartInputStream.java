@@ -0,0 +1,84 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The body of a part, which can be read as an <code>InputStream</code> or, without copying, as a sequence of
+ * <code>ByteBuffer</code>s.
+ */
+public abstract class PartInputStream extends InputStream {
+
+    /**
+     * Returns the next bytes of the part as a <code>ByteBuffer</code>, positioned over the bytes. A read-only
+     * buffer may be a view of the parser's own buffer, so it is only valid until the next read from this part.
+     *
+     * @return the next bytes of the part, or null at the end of the part
+     */
+    public abstract ByteBuffer readSlice() throws IOException;
+
+    /**
+     * Reads the next bytes of the part into <code>dst</code>, from its position up to its limit, as
+     * <code>ReadableByteChannel.read</code>.
+     *
+     * @return the number of bytes read, or -1 at the end of the part
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        return StreamUtil.read(this, dst);
+    }
+
+    /**
+     * Writes the rest of the part to <code>out</code>, a slice at a time.
+     *
+     * @return the number of bytes written
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        long count = 0;
+        byte[] chunk = null;
+        ByteBuffer slice;
+        try {
+            while ((slice = readSlice()) != null) {
+                int length = slice.remaining();
+                if (slice.hasArray()) {
+                    out.write(slice.array(), slice.arrayOffset() + slice.position(), length);
+                } else {
+                    if (chunk == null) {
+                        chunk = BufferPool.shared().borrow(StreamUtil.TRANSFER_CHUNK_SIZE);
+                    }
+                    while (slice.hasRemaining()) {
+                        int n = Math.min(chunk.length, slice.remaining());
+                        slice.get(chunk, 0, n);
+                        out.write(chunk, 0, n);
+                    }
+                }
+                count += length;
+            }
+        } finally {
+            if (chunk != null) {
+                BufferPool.shared().giveBack(chunk);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the rest of the part to the blocking <code>channel</code>, handing it each slice as it is, so the bytes
+     * go from the parser's buffer to the channel without being copied in between.
+     *
+     * @return the number of bytes written
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        long count = 0;
+        ByteBuffer slice;
+        while ((slice = readSlice()) != null) {
+            count += slice.remaining();
+            while (slice.hasRemaining()) {
+                channel.write(slice);
+            }
+        }
+        return count;
+    }
+}
@@ -4,21 +4,50 @@ import org.tiestvilee.multipartform.exceptions.StreamTooLongException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 
 public class StreamUtil {
+    static final int TRANSFER_CHUNK_SIZE = 8192;
+
     public static String readStringFromInputStream(InputStream inputStream, Charset encoding, int maxPartContentSize) throws IOException {
-        byte[] bytes = new byte[maxPartContentSize];
-        int length = readAllBytesFromInputStream(inputStream, maxPartContentSize, bytes);
-        return new String(bytes, 0, length, encoding);
+        ChunkedBytes bytes = readAllChunksFromInputStream(inputStream, maxPartContentSize);
+        try {
+            return bytes.toString(encoding);
+        } finally {
+            bytes.release();
+        }
     }
 
     public static byte[] readAllBytesFromInputStream(InputStream inputStream, int maxLength) throws IOException {
-        byte[] bytes = new byte[maxLength];
-        int length = readAllBytesFromInputStream(inputStream, maxLength, bytes);
-        byte[] result = new byte[length];
-        System.arraycopy(bytes, 0, result, 0, length);
-        return result;
+        ChunkedBytes bytes = readAllChunksFromInputStream(inputStream, maxLength);
+        try {
+            return bytes.toByteArray();
+        } finally {
+            bytes.release();
+        }
+    }
+
+    /**
+     * Reads the rest of <code>inputStream</code> into chunks that grow as far as it needs, and closes it.
+     *
+     * @throws StreamTooLongException if it is longer than <code>maxLength</code>
+     */
+    public static ChunkedBytes readAllChunksFromInputStream(InputStream inputStream, int maxLength) throws IOException {
+        ChunkedBytes bytes = new ChunkedBytes();
+        try {
+            if (!bytes.readFrom(inputStream, maxLength) && inputStream.read() >= 0) {
+                throw new StreamTooLongException("Part contents was longer than " + maxLength + " bytes");
+            }
+            inputStream.close();
+            return bytes;
+        } catch (IOException | RuntimeException e) {
+            bytes.release();
+            inputStream.close();
+            throw e;
+        }
     }
 
     public static int readAllBytesFromInputStream(InputStream inputStream, int maxLength, byte[] bytes) throws IOException {
@@ -37,4 +66,76 @@ public class StreamUtil {
             length += count;
         }
     }
+
+    /**
+     * Reads the next bytes of <code>inputStream</code> into <code>dst</code>, from its position up to its limit.
+     * A buffer without an array, such as a direct one, is filled through a pooled array.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public static int read(InputStream inputStream, ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            int count = inputStream.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (count > 0) {
+                dst.position(dst.position() + count);
+            }
+            return count;
+        }
+        byte[] chunk = BufferPool.shared().borrow(Math.min(dst.remaining(), TRANSFER_CHUNK_SIZE));
+        try {
+            int count = inputStream.read(chunk, 0, Math.min(dst.remaining(), chunk.length));
+            if (count > 0) {
+                dst.put(chunk, 0, count);
+            }
+            return count;
+        } finally {
+            BufferPool.shared().giveBack(chunk);
+        }
+    }
+
+    /**
+     * Copies the rest of <code>inputStream</code> to <code>out</code>.
+     *
+     * @return the number of bytes copied
+     */
+    public static long transfer(InputStream inputStream, OutputStream out) throws IOException {
+        byte[] chunk = BufferPool.shared().borrow(TRANSFER_CHUNK_SIZE);
+        try {
+            long count = 0;
+            int length;
+            while ((length = inputStream.read(chunk, 0, chunk.length)) >= 0) {
+                out.write(chunk, 0, length);
+                count += length;
+            }
+            return count;
+        } finally {
+            BufferPool.shared().giveBack(chunk);
+        }
+    }
+
+    /**
+     * Copies the rest of <code>inputStream</code> to the blocking <code>channel</code>.
+     *
+     * @return the number of bytes copied
+     */
+    public static long transfer(InputStream inputStream, WritableByteChannel channel) throws IOException {
+        byte[] chunk = BufferPool.shared().borrow(TRANSFER_CHUNK_SIZE);
+        try {
+            long count = 0;
+            int length;
+            while ((length = inputStream.read(chunk, 0, chunk.length)) >= 0) {
+                ByteBuffer bytes = ByteBuffer.wrap(chunk, 0, length);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                count += length;
+            }
+            return count;
+        } finally {
+            BufferPool.shared().giveBack(chunk);
+        }
+    }
 }
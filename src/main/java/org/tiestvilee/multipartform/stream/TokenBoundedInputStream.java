@@ -5,10 +5,20 @@ import org.tiestvilee.multipartform.exceptions.TokenNotFoundException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 
 public class TokenBoundedInputStream extends CircularBufferedInputStream {
-    private final int maxStreamLength;
+    private static final byte[] CR_LF = {(byte) '\r', (byte) '\n'};
+
+    private int maxStreamLength;
+
+    // bytes before tokenFreeUntil are known not to start currentSearch's token, which might start at tokenCandidate
+    private TokenSearch currentSearch;
+    private long tokenFreeUntil;
+    private long tokenCandidate;
 
     public TokenBoundedInputStream(InputStream inputStream, int bufSize) {
         this(inputStream, bufSize, -1);
@@ -19,6 +29,50 @@ public class TokenBoundedInputStream extends CircularBufferedInputStream {
         this.maxStreamLength = maxStreamLength;
     }
 
+    /**
+     * @param directBuffer whether the ring buffer is off the heap, see <code>CircularBufferedInputStream</code>
+     */
+    public TokenBoundedInputStream(InputStream inputStream, int bufSize, int maxStreamLength, boolean directBuffer) {
+        super(inputStream, bufSize, directBuffer);
+        this.maxStreamLength = maxStreamLength;
+    }
+
+    public TokenBoundedInputStream(ReadableByteChannel channel, int bufSize, int maxStreamLength) {
+        this(channel, bufSize, maxStreamLength, false);
+    }
+
+    public TokenBoundedInputStream(ReadableByteChannel channel, int bufSize, int maxStreamLength, boolean directBuffer) {
+        super(channel, bufSize, directBuffer);
+        this.maxStreamLength = maxStreamLength;
+    }
+
+    /**
+     * Reads <code>contents</code> in place, see <code>CircularBufferedInputStream(ByteBuffer)</code>.
+     */
+    public TokenBoundedInputStream(ByteBuffer contents) {
+        super(contents);
+        this.maxStreamLength = -1;
+    }
+
+    /**
+     * Starts reading another stream into the same buffer, as if this had just been created for it.
+     */
+    public void restart(InputStream inputStream, int maxStreamLength) {
+        restart(inputStream, null, maxStreamLength);
+    }
+
+    public void restart(ReadableByteChannel channel, int maxStreamLength) {
+        restart(null, channel, maxStreamLength);
+    }
+
+    private void restart(InputStream inputStream, ReadableByteChannel channel, int maxStreamLength) {
+        restart(inputStream, channel);
+        this.maxStreamLength = maxStreamLength;
+        this.currentSearch = null;
+        this.tokenFreeUntil = 0;
+        this.tokenCandidate = 0;
+    }
+
     /**
      * Consumes all bytes up to and including the matched endOfToken bytes.
      * Fills the buffer with all bytes excluding the endOfToken bytes.
@@ -59,6 +113,48 @@ public class TokenBoundedInputStream extends CircularBufferedInputStream {
         }
     }
 
+    /**
+     * As <code>getBytesUntil(CRLF, line, encoding)</code>, but takes the bytes straight from the buffer rather than
+     * one <code>read()</code> at a time, so a line costs a compare and a store per byte. Only a CR is looked at
+     * twice, to see if a LF follows it.
+     *
+     * @param line     fills this buffer with the bytes of the line, _excluding_ the CRLF
+     * @param maxLength the most bytes of <code>line</code> to fill
+     * @param encoding Charset for formatting error messages
+     * @return number of bytes inserted into line
+     */
+    public int getLineBytes(byte[] line, int maxLength, Charset encoding) throws IOException {
+        int lineIndex = 0;
+
+        int b;
+        while (true) {
+            long safeUntil = maxStreamLength > -1 ? Math.min(rightBounds, maxStreamLength) : rightBounds;
+            if (cursor < safeUntil) {
+                b = buffer.get((int) (cursor++ & bufferIndexMask)) & 0x0FF;
+            } else {
+                b = readFromStream();
+                if (b < 0) {
+                    throw new TokenNotFoundException(
+                        "Reached end of stream before finding Token <<" + new String(CR_LF, encoding) + ">>. " +
+                            "Last " + CR_LF.length + " bytes read were " +
+                            "<<" + getBytesRead(CR_LF, line, lineIndex, encoding) + ">>");
+                }
+            }
+            if (lineIndex >= maxLength) {
+                throw new TokenNotFoundException("Didn't find end of Token <<" + new String(CR_LF, encoding) + ">> " +
+                    "within " + maxLength + " bytes");
+            }
+            if (b == CR_LF[0]) {
+                mark(CR_LF.length);
+                if (matchToken(CR_LF, b)) {
+                    return lineIndex;
+                }
+                reset();
+            }
+            line[lineIndex++] = (byte) b;
+        }
+    }
+
     private String getBytesRead(byte[] endOfToken, byte[] buffer, int bufferIndex, Charset encoding) {
         int index, length;
         if (bufferIndex - endOfToken.length > 0) {
@@ -120,6 +216,185 @@ public class TokenBoundedInputStream extends CircularBufferedInputStream {
         return b;
     }
 
+    /**
+     * As <code>readByteFromStreamUnlessTokenMatched(byte[])</code>, but uses the search to skip over
+     * stretches of the buffer that cannot contain the token, so most bytes are returned without being
+     * checked one at a time.
+     *
+     * @param search the search for the token that indicates the end of this stream
+     * @return the next byte in the stream, -1 if the underlying stream has finished,
+     *         or -2 if the token is found. The token is consumed when it is matched.
+     */
+    public int readByteFromStreamUnlessTokenMatched(TokenSearch search) throws IOException {
+        if (cursor >= tokenFreeUntil || search != currentSearch) {
+            findTokenFreeBytes(search);
+            if (cursor >= tokenFreeUntil) {
+                return readByteAtTokenCandidate(search.token());
+            }
+        }
+        return buffer.get((int) (cursor++ & bufferIndexMask)) & 0x0FF;
+    }
+
+    /**
+     * Copies bytes from the Stream into <code>b</code> until the token is found. Stretches of the buffer that cannot
+     * contain the token are copied in bulk. If the token is found after some bytes have been copied, those bytes
+     * are returned and the token is left in the stream for the next call.
+     *
+     * @param search the search for the token that indicates the end of this stream
+     * @param b      the buffer into which the data is read
+     * @param off    the start offset in <code>b</code>
+     * @param len    the maximum number of bytes to read
+     * @return the number of bytes read, -1 if the underlying stream has finished, or -2 if the token
+     *         is found before any bytes are read. The token is consumed when it is matched.
+     */
+    public int readUnlessTokenMatched(TokenSearch search, byte[] b, int off, int len) throws IOException {
+        int count = 0;
+        while (count < len) {
+            if (cursor >= tokenFreeUntil || search != currentSearch) {
+                findTokenFreeBytes(search);
+                if (cursor >= tokenFreeUntil) {
+                    if (count > 0) {
+                        return count;
+                    }
+                    int result = readByteAtTokenCandidate(search.token());
+                    if (result < 0) {
+                        return result;
+                    }
+                    b[off + count++] = (byte) result;
+                    continue;
+                }
+            }
+            int length = (int) Math.min(len - count, tokenFreeUntil - cursor);
+            copyFromBuffer(b, off + count, length);
+            count += length;
+        }
+        return count;
+    }
+
+    /**
+     * As <code>readUnlessTokenMatched(TokenSearch, byte[], int, int)</code>, putting the bytes into <code>dst</code>
+     * up to its limit, so they can be copied straight into a direct buffer.
+     */
+    public int readUnlessTokenMatched(TokenSearch search, ByteBuffer dst) throws IOException {
+        int count = 0;
+        while (dst.hasRemaining()) {
+            if (cursor >= tokenFreeUntil || search != currentSearch) {
+                findTokenFreeBytes(search);
+                if (cursor >= tokenFreeUntil) {
+                    if (count > 0) {
+                        return count;
+                    }
+                    int result = readByteAtTokenCandidate(search.token());
+                    if (result < 0) {
+                        return result;
+                    }
+                    dst.put((byte) result);
+                    count++;
+                    continue;
+                }
+            }
+            int length = (int) Math.min(dst.remaining(), tokenFreeUntil - cursor);
+            copyFromBuffer(dst, length);
+            count += length;
+        }
+        return count;
+    }
+
+    /**
+     * As <code>readUnlessTokenMatched(TokenSearch, byte[], int, int)</code>, but moves past the bytes without copying
+     * them anywhere, so unwanted bytes are dropped as fast as the search can rule them out.
+     *
+     * @param search the search for the token that indicates the end of this stream
+     * @param n      the maximum number of bytes to skip
+     * @return the number of bytes skipped, -1 if the underlying stream has finished, or -2 if the token
+     *         is found before any bytes are skipped. The token is consumed when it is matched.
+     */
+    public long skipUnlessTokenMatched(TokenSearch search, long n) throws IOException {
+        long count = 0;
+        while (count < n) {
+            if (cursor >= tokenFreeUntil || search != currentSearch) {
+                findTokenFreeBytes(search);
+                if (cursor >= tokenFreeUntil) {
+                    if (count > 0) {
+                        return count;
+                    }
+                    int result = readByteAtTokenCandidate(search.token());
+                    if (result < 0) {
+                        return result;
+                    }
+                    count++;
+                    continue;
+                }
+            }
+            long length = Math.min(n - count, tokenFreeUntil - cursor);
+            cursor += length;
+            count += length;
+        }
+        return count;
+    }
+
+    /**
+     * As <code>readUnlessTokenMatched(TokenSearch, byte[], int, int)</code>, but hands out the token free bytes as a
+     * read-only view of the buffer instead of copying them. The view is only valid until the next read.
+     *
+     * @param search the search for the token that indicates the end of this stream
+     * @return a view of the next bytes in the stream, or null if the cursor is at a possible token. Use
+     *         <code>readByteFromStreamUnlessTokenMatched(TokenSearch)</code> to find out whether it is one.
+     */
+    public ByteBuffer readSliceUnlessTokenMatched(TokenSearch search) throws IOException {
+        if (cursor >= tokenFreeUntil || search != currentSearch) {
+            findTokenFreeBytes(search);
+            if (cursor >= tokenFreeUntil) {
+                return null;
+            }
+        }
+        int untilEndOfBuffer = buffer.capacity() - (int) (cursor & bufferIndexMask);
+        return sliceFromBuffer((int) Math.min(untilEndOfBuffer, tokenFreeUntil - cursor));
+    }
+
+    /**
+     * As <code>readSliceUnlessTokenMatched(TokenSearch)</code>, but writes the token free bytes to <code>out</code>
+     * straight from the buffer.
+     *
+     * @param search the search for the token that indicates the end of this stream
+     * @return the number of bytes written, or 0 if the cursor is at a possible token. Use
+     *         <code>readByteFromStreamUnlessTokenMatched(TokenSearch)</code> to find out whether it is one.
+     */
+    public int writeUnlessTokenMatched(TokenSearch search, OutputStream out) throws IOException {
+        if (cursor >= tokenFreeUntil || search != currentSearch) {
+            findTokenFreeBytes(search);
+            if (cursor >= tokenFreeUntil) {
+                return 0;
+            }
+        }
+        int untilEndOfBuffer = buffer.capacity() - (int) (cursor & bufferIndexMask);
+        int length = (int) Math.min(untilEndOfBuffer, tokenFreeUntil - cursor);
+        writeFromBuffer(out, length);
+        return length;
+    }
+
+    private void findTokenFreeBytes(TokenSearch search) throws IOException {
+        bufferAhead(search.token().length);
+        currentSearch = search;
+        tokenCandidate = search.firstCandidate(buffer, bufferIndexMask, cursor, rightBounds);
+        tokenFreeUntil = tokenCandidate;
+        if (maxStreamLength > -1 && tokenFreeUntil > maxStreamLength) {
+            // leave the length check to readFromStream
+            tokenFreeUntil = Math.max(cursor, maxStreamLength);
+        }
+    }
+
+    private int readByteAtTokenCandidate(byte[] token) throws IOException {
+        if (cursor == tokenCandidate && rightBounds - cursor >= token.length) {
+            // the search has already seen the whole token here, so consume it without reading it again
+            if (maxStreamLength > -1 && cursor + token.length > maxStreamLength) {
+                throw new StreamTooLongException("Form contents was longer than " + maxStreamLength + " bytes");
+            }
+            cursor += token.length;
+            return -2;
+        }
+        return readByteFromStreamUnlessTokenMatched(token);
+    }
 
     private int readFromStream() throws IOException {
         if (maxStreamLength > -1 && cursor >= maxStreamLength) {
@@ -0,0 +1,67 @@
+package org.tiestvilee.multipartform.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds where a token might start in the ring buffer of a <code>CircularBufferedInputStream</code>, so that
+ * the bytes before it can be handed out without checking each one.
+ */
+public abstract class TokenSearch {
+    protected final byte[] token;
+
+    // how many bytes the search has compared so far, so a search that is doing too much work can be spotted
+    protected long comparisons;
+
+    protected TokenSearch(byte[] token) {
+        if (token.length == 0) {
+            throw new IllegalArgumentException("Cannot search for an empty token");
+        }
+        this.token = token;
+    }
+
+    public byte[] token() {
+        return token;
+    }
+
+    /**
+     * Forgets anything remembered from earlier searches, for when stream positions start again in a new buffer.
+     */
+    public void reset() {
+    }
+
+    /**
+     * Forgets everything about the stream searched so far, for when the search starts on a new stream.
+     */
+    public void restart() {
+        reset();
+    }
+
+    /**
+     * Finds the first position in <code>[from, to)</code> where the token might start. Every position before
+     * the returned one is known not to start the token. The returned position is either a complete match or
+     * too close to <code>to</code> to tell yet.
+     *
+     * @param buffer    the ring buffer
+     * @param indexMask mask that turns a stream position into an index in the buffer
+     * @param from      stream position to start searching from
+     * @param to        stream position just after the last byte in the buffer
+     * @return the first stream position that could be the start of the token, at most <code>to</code>
+     */
+    public abstract long firstCandidate(byte[] buffer, long indexMask, long from, long to);
+
+    /**
+     * As <code>firstCandidate(byte[], long, long, long)</code>. Buffers backed by an array are searched through
+     * the array; direct and memory-mapped buffers through <code>firstCandidateWithoutArray</code>.
+     */
+    public long firstCandidate(ByteBuffer buffer, long indexMask, long from, long to) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0) {
+            return firstCandidate(buffer.array(), indexMask, from, to);
+        }
+        return firstCandidateWithoutArray(buffer, indexMask, from, to);
+    }
+
+    /**
+     * As <code>firstCandidate(byte[], long, long, long)</code>, reading the buffer with absolute gets.
+     */
+    protected abstract long firstCandidateWithoutArray(ByteBuffer buffer, long indexMask, long from, long to);
+}
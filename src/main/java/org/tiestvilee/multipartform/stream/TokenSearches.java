@@ -0,0 +1,13 @@
+package org.tiestvilee.multipartform.stream;
+
+/**
+ * Picks the fastest <code>TokenSearch</code> this JVM can run, guarded so crafted bodies can't make it slow.
+ * On Java 17+ the multi-release jar replaces this class with one that uses the Vector API when
+ * <code>jdk.incubator.vector</code> is available.
+ */
+public class TokenSearches {
+
+    public static TokenSearch forBoundary(byte[] boundaryWithPrefix) {
+        return new GuardedTokenSearch(new BoyerMooreHorspool(boundaryWithPrefix));
+    }
+}
@@ -0,0 +1,29 @@
+package org.tiestvilee.multipartform.stream;
+
+/**
+ * Picks the fastest <code>TokenSearch</code> this JVM can run. This is the Java 17+ version from the
+ * multi-release jar: it uses the Vector API when the JVM was started with
+ * <code>--add-modules jdk.incubator.vector</code>, and the scalar search otherwise. Either is guarded so
+ * crafted bodies can't make it slow.
+ */
+public class TokenSearches {
+    private static final boolean VECTOR_API_AVAILABLE = vectorApiAvailable();
+
+    public static TokenSearch forBoundary(byte[] boundaryWithPrefix) {
+        if (VECTOR_API_AVAILABLE && boundaryWithPrefix.length >= 2) {
+            return new GuardedTokenSearch(new VectorTokenSearch(boundaryWithPrefix));
+        }
+        return new GuardedTokenSearch(new BoyerMooreHorspool(boundaryWithPrefix));
+    }
+
+    private static boolean vectorApiAvailable() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return false;
+        }
+        try {
+            return VectorTokenSearch.preferredVectorLength() >= 16;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
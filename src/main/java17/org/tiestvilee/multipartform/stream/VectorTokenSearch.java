@@ -0,0 +1,129 @@
+package org.tiestvilee.multipartform.stream;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Looks for the first two bytes of the token (CR LF for a boundary) a whole vector at a time, and only
+ * compares the rest of the token where both are found. Most binary bodies have very few CR LF pairs, so
+ * nearly all of the buffer is dealt with 32 or 64 bytes per step.
+ */
+class VectorTokenSearch extends TokenSearch {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private final ByteVector first;
+    private final ByteVector second;
+
+    VectorTokenSearch(byte[] token) {
+        super(token);
+        first = ByteVector.broadcast(SPECIES, token[0]);
+        second = ByteVector.broadcast(SPECIES, token[1]);
+    }
+
+    static int preferredVectorLength() {
+        return SPECIES.length();
+    }
+
+    @Override public long firstCandidate(byte[] buffer, long indexMask, long from, long to) {
+        int vectorLength = SPECIES.length();
+        long position = from;
+        while (position < to) {
+            int index = (int) (position & indexMask);
+            // bytes we can scan before the buffer wraps; each step also loads the byte after the vector
+            int contiguous = (int) Math.min(to - position, buffer.length - index);
+            int end = index + contiguous;
+
+            int i = index;
+            while (i + vectorLength < end) {
+                VectorMask<Byte> pairs = ByteVector.fromArray(SPECIES, buffer, i).eq(first)
+                    .and(ByteVector.fromArray(SPECIES, buffer, i + 1).eq(second));
+                if (pairs.anyTrue()) {
+                    long candidate = position + (i - index) + pairs.firstTrue();
+                    if (mightMatchAt(buffer, indexMask, candidate, to)) {
+                        return candidate;
+                    }
+                    i = (int) (candidate - position + index) + 1;
+                } else {
+                    i += vectorLength;
+                    comparisons++;
+                }
+            }
+
+            for (long p = position + (i - index); p < position + contiguous; p++) {
+                if (buffer[(int) (p & indexMask)] == token[0] && mightMatchAt(buffer, indexMask, p, to)) {
+                    return p;
+                }
+            }
+            position += contiguous;
+        }
+        return to;
+    }
+
+    @Override protected long firstCandidateWithoutArray(ByteBuffer buffer, long indexMask, long from, long to) {
+        int vectorLength = SPECIES.length();
+        long position = from;
+        while (position < to) {
+            int index = (int) (position & indexMask);
+            int contiguous = (int) Math.min(to - position, buffer.capacity() - index);
+            int end = index + contiguous;
+
+            int i = index;
+            while (i + vectorLength < end) {
+                VectorMask<Byte> pairs = ByteVector.fromByteBuffer(SPECIES, buffer, i, ByteOrder.nativeOrder()).eq(first)
+                    .and(ByteVector.fromByteBuffer(SPECIES, buffer, i + 1, ByteOrder.nativeOrder()).eq(second));
+                if (pairs.anyTrue()) {
+                    long candidate = position + (i - index) + pairs.firstTrue();
+                    if (mightMatchAt(buffer, indexMask, candidate, to)) {
+                        return candidate;
+                    }
+                    i = (int) (candidate - position + index) + 1;
+                } else {
+                    i += vectorLength;
+                    comparisons++;
+                }
+            }
+
+            for (long p = position + (i - index); p < position + contiguous; p++) {
+                if (buffer.get((int) (p & indexMask)) == token[0] && mightMatchAt(buffer, indexMask, p, to)) {
+                    return p;
+                }
+            }
+            position += contiguous;
+        }
+        return to;
+    }
+
+    private boolean mightMatchAt(byte[] buffer, long indexMask, long position, long to) {
+        for (int i = 0; i < token.length; i++) {
+            if (position + i >= to) {
+                comparisons += i;
+                return true; // can't tell yet
+            }
+            if (buffer[(int) ((position + i) & indexMask)] != token[i]) {
+                comparisons += i + 1;
+                return false;
+            }
+        }
+        comparisons += token.length;
+        return true;
+    }
+
+    private boolean mightMatchAt(ByteBuffer buffer, long indexMask, long position, long to) {
+        for (int i = 0; i < token.length; i++) {
+            if (position + i >= to) {
+                comparisons += i;
+                return true;
+            }
+            if (buffer.get((int) ((position + i) & indexMask)) != token[i]) {
+                comparisons += i + 1;
+                return false;
+            }
+        }
+        comparisons += token.length;
+        return true;
+    }
+}
@@ -0,0 +1,43 @@
+package org.tiestvilee.multipartform;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.concurrent.ExecutionException;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+
+public class AsyncSpillTest {
+
+    @Test
+    public void waitsForWritesInFlightEvenIfAbandonedTwice() throws Exception {
+        File file = File.createTempFile("async-spill-", ".spill", MultipartFormMapTest.TEMPORARY_FILE_DIRECTORY);
+        try {
+            AsyncSpill spill = new AsyncSpill(AsynchronousFileChannel.open(file.toPath(), WRITE), 2, 1024 * 1024);
+            ByteBuffer chunk = spill.emptyChunk();
+            while (chunk.hasRemaining()) {
+                chunk.put((byte) 'x');
+            }
+            spill.queue(chunk);
+
+            spill.abandon();
+            spill.abandon();
+
+            try {
+                spill.whenWritten().get();
+                fail("an abandoned spill should fail");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause().getMessage(), equalTo("Abandoned writing part to disk"));
+            }
+            // the write queued before abandoning finished before the channel was closed
+            assertThat(file.length(), equalTo(1024L * 1024));
+        } finally {
+            file.delete();
+        }
+    }
+}
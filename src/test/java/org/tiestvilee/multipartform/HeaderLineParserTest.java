@@ -0,0 +1,68 @@
+package org.tiestvilee.multipartform;
+
+import org.junit.Test;
+import org.tiestvilee.multipartform.exceptions.ParseError;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HeaderLineParserTest {
+
+    @Test
+    public void parsesHeadersTheSameWayAsFromStrings() throws Exception {
+        String[] lines = {
+            "Content-Disposition: form-data;",
+            "  name=\"field\";",
+            "\tfilename=\"utf8💩.txt\"   ",
+            "  Content-Type :text/plain",
+            "X-Empty:",
+            "X-Latin: café"};
+
+        for (Charset encoding : new Charset[]{UTF_8, ISO_8859_1, UTF_16}) {
+            if (encoding == ISO_8859_1) {
+                lines[2] = "\tfilename=\"café.txt\"";
+            }
+            assertThat(encoding.name(), parseBytes(lines, encoding), equalTo(parseStrings(lines)));
+        }
+    }
+
+    @Test
+    public void failsIfHeaderHasNoColon() throws Exception {
+        byte[] line = "Content-Disposition form-data".getBytes(UTF_8);
+        try {
+            HeaderLineParser parser = new HeaderLineParser(UTF_8);
+            parser.addHeaderLine(parser.newHeaders(), null, line, line.length);
+            fail("Should have thrown ParseError");
+        } catch (ParseError e) {
+            assertThat(e.getMessage(), equalTo("Header didn't include a colon <<Content-Disposition form-data>>"));
+        }
+    }
+
+    private Map<String, String> parseBytes(String[] lines, Charset encoding) {
+        HeaderLineParser parser = new HeaderLineParser(encoding);
+        PartHeaders headers = parser.newHeaders();
+        String previousHeaderName = null;
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(encoding);
+            previousHeaderName = parser.addHeaderLine(headers, previousHeaderName, bytes, bytes.length);
+        }
+        return headers;
+    }
+
+    private Map<String, String> parseStrings(String[] lines) {
+        Map<String, String> headers = new HashMap<>();
+        String previousHeaderName = null;
+        for (String line : lines) {
+            previousHeaderName = StreamingMultipartFormParts.addHeaderLine(headers, previousHeaderName, line);
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,50 @@
+package org.tiestvilee.multipartform;
+
+import org.apache.commons.fileupload.util.ParameterParser;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HeaderParametersTest {
+
+    @Test
+    public void readsParametersTheSameWayAsParameterParser() throws Exception {
+        String[] headers = {
+            "form-data; name=\"field\"",
+            "form-data; name=\"file\"; filename=\"foo.tab\"",
+            "form-data;\tname = field ;filename=",
+            "form-data; name=\"a;b\"; filename=\"with \\\"quotes\\\" and ; in it\"",
+            "form-data; name=\"\"; filename",
+            "attachment; filename=\"=?UTF-8?Q?caf=C3=A9.txt?=\"",
+            "attachment",
+            "multipart/mixed; boundary=\"--7890\"",
+            "text/plain; charset=UTF-8",
+            "form-data; NAME=\"upper\"; name=first; name=second",
+            ";;  ; =value; name=\"unterminated",
+            ""};
+
+        for (String header : headers) {
+            Map<String, String> expected = new ParameterParser().parse(header, ';');
+            HeaderParameters actual = HeaderParameters.parse(header);
+
+            assertThat(header, actual.name, equalTo(expected.get("name")));
+            assertThat(header, actual.filename, equalTo(expected.get("filename")));
+            assertThat(header, actual.hasFilename, equalTo(expected.containsKey("filename")));
+            assertThat(header, actual.boundary, equalTo(expected.get("boundary")));
+            assertThat(header, actual.charset, equalTo(expected.get("charset")));
+            assertThat(header, actual.attachment, equalTo(expected.containsKey("attachment")));
+        }
+    }
+
+    @Test
+    public void hasNoParametersWhenThereIsNoHeader() throws Exception {
+        HeaderParameters parameters = HeaderParameters.parse(null);
+
+        assertThat(parameters.name, equalTo(null));
+        assertThat(parameters.fileName(), equalTo(null));
+        assertThat(parameters.attachment, equalTo(false));
+    }
+}
@@ -2,16 +2,42 @@ package org.tiestvilee.multipartform;
 
 import org.junit.Ignore;
 import org.junit.Test;
+import org.tiestvilee.multipartform.exceptions.AlreadyClosedException;
+import org.tiestvilee.multipartform.exceptions.DiskBudgetExceededException;
 import org.tiestvilee.multipartform.exceptions.StreamTooLongException;
 import org.tiestvilee.multipartform.exceptions.TokenNotFoundException;
+import org.tiestvilee.multipartform.part.ByteBufferPart;
+import org.tiestvilee.multipartform.part.DiskBackedPart;
+import org.tiestvilee.multipartform.part.DiskBudget;
+import org.tiestvilee.multipartform.part.InMemoryPart;
 import org.tiestvilee.multipartform.part.Part;
+import org.tiestvilee.multipartform.part.PartMetaData;
 import org.tiestvilee.multipartform.part.Parts;
+import org.tiestvilee.multipartform.part.SpillFileCleaner;
+import org.tiestvilee.multipartform.part.SpillFilePool;
 import org.tiestvilee.multipartform.part.StreamingPart;
+import org.tiestvilee.multipartform.stream.MemoryBudget;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -23,6 +49,8 @@ import static org.junit.Assert.fail;
 
 public class MultipartFormMapTest {
     public static final File TEMPORARY_FILE_DIRECTORY = new File("./out/tmp");
+    // can't be put in a file name where the file system's encoding is ASCII, as it is under LANG=C
+    private static final String NON_ASCII_FILE_NAME = "caf\u00e9.txt";
 
     static {
         TEMPORARY_FILE_DIRECTORY.mkdirs();
@@ -147,13 +175,452 @@ public class MultipartFormMapTest {
             allFieldsAreLoadedCorrectly(partMap, false, true, true, false);
 
             String[] files = temporaryFileList();
-            assertPartSaved("simple7bit.txt", files);
-            assertPartSaved("starbucks.jpeg", files);
+            assertSpillFilesNamedSafely(files);
             assertThat(files.length, equalTo(2));
         }
         assertThat(temporaryFileList().length, equalTo(0));
     }
 
+    @Test
+    public void inMemoryPartsCanStillBeReadAfterTheyAreClosed() throws Exception {
+        Part articleType;
+        try (Parts parts = MultipartFormMap.formMap(safariExample(), UTF_8, 1024 * 1024, TEMPORARY_FILE_DIRECTORY)) {
+            articleType = parts.partMap.get("articleType").get(0);
+        }
+
+        assertThat(articleType.getString(), equalTo("obituary"));
+        assertThat(UTF_8.decode(((InMemoryPart) articleType).getByteBuffer()).toString(), equalTo("obituary"));
+    }
+
+    @Test
+    public void savesPartsToDiskEarlyWhenTheMemoryBudgetIsTight() throws Exception {
+        MemoryBudget budget = MemoryBudget.shared();
+        long reservedBefore = budget.reserved();
+        long spilledEarlyBefore = budget.spilledEarly();
+        budget.setLimit(reservedBefore + 1024);
+        try {
+            try (Parts parts = MultipartFormMap.formMap(safariExample(), UTF_8, 1024 * 1024, TEMPORARY_FILE_DIRECTORY)) {
+                allFieldsAreLoadedCorrectly(parts.partMap, false, false, false, false);
+
+                assertThat(temporaryFileList().length, equalTo(4));
+                assertThat(budget.spilledEarly() - spilledEarlyBefore, equalTo(4L));
+                assertThat(budget.reserved() - reservedBefore, equalTo(256L)); // the first chunk of articleType
+            }
+            assertThat(budget.reserved(), equalTo(reservedBefore));
+        } finally {
+            budget.setLimit(Long.MAX_VALUE);
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+    }
+
+    @Test
+    public void countsTheDiskTakenUpByPartsWrittenToDisk() throws Exception {
+        assertTrue(SpillFileCleaner.shared().awaitCleanup(10, TimeUnit.SECONDS));
+        long usedBefore = DiskBudget.shared().used(TEMPORARY_FILE_DIRECTORY);
+
+        try (Parts parts = MultipartFormMap.formMap(safariExample(), UTF_8, 100, TEMPORARY_FILE_DIRECTORY)) {
+            long written = 0;
+            for (Part part : parts.partMap.get("uploadManuscript")) {
+                written += part.length;
+            }
+            assertThat(DiskBudget.shared().used(TEMPORARY_FILE_DIRECTORY) - usedBefore, equalTo(written));
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+        assertThat(DiskBudget.shared().used(TEMPORARY_FILE_DIRECTORY), equalTo(usedBefore));
+    }
+
+    @Test
+    public void refusesToWritePastTheQuotaOfTheDirectory() throws Exception {
+        assertTrue(SpillFileCleaner.shared().awaitCleanup(10, TimeUnit.SECONDS));
+        DiskBudget budget = DiskBudget.shared();
+        long usedBefore = budget.used(TEMPORARY_FILE_DIRECTORY);
+        long refusedBefore = budget.refused();
+        budget.setQuota(TEMPORARY_FILE_DIRECTORY, usedBefore + 5000);
+        try {
+            MultipartFormMap.formMap(safariExample(), UTF_8, 100, TEMPORARY_FILE_DIRECTORY);
+            fail("should have refused to write simple7bit.txt, which is over 8KB");
+        } catch (DiskBudgetExceededException e) {
+            assertThat(e.getMessage(), containsString("would go over its quota of " + (usedBefore + 5000) + " bytes"));
+        } finally {
+            budget.setQuota(TEMPORARY_FILE_DIRECTORY, Long.MAX_VALUE);
+        }
+        assertThat(budget.refused() - refusedBefore, equalTo(1L));
+        assertThat(temporaryFileList().length, equalTo(0));
+        assertThat(budget.used(TEMPORARY_FILE_DIRECTORY), equalTo(usedBefore));
+    }
+
+    @Test
+    public void reusesFilesFromASpillFilePool() throws Exception {
+        try (SpillFilePool spillFiles = new SpillFilePool(TEMPORARY_FILE_DIRECTORY, 3)) {
+            List<String> firstFiles;
+            try (Parts parts = MultipartFormMap.formMap(safariExample(), UTF_8, 100, spillFiles, null)) {
+                allFieldsAreLoadedCorrectly(parts.partMap, false, false, false, false);
+                firstFiles = Arrays.asList(temporaryFileList());
+                assertThat(firstFiles.size(), equalTo(4));
+            }
+            String[] kept = temporaryFileList();
+            assertThat(spillFiles.retained(), equalTo(3));
+            assertThat(kept.length, equalTo(3));
+            for (String file : kept) {
+                assertThat(new File(TEMPORARY_FILE_DIRECTORY, file).length(), equalTo(0L));
+            }
+
+            try (Parts parts = MultipartFormMap.formMap(safariExample(), UTF_8, 100, spillFiles, null)) {
+                allFieldsAreLoadedCorrectly(parts.partMap, false, false, false, false);
+                assertThat(spillFiles.retained(), equalTo(0));
+                List<String> secondFiles = Arrays.asList(temporaryFileList());
+                assertThat(secondFiles.size(), equalTo(4));
+                assertTrue(secondFiles.containsAll(Arrays.asList(kept)));
+            }
+            assertThat(temporaryFileList().length, equalTo(3));
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+    }
+
+    @Test
+    public void deletesTheFilesOfPartsThatAreNeverClosed() throws Exception {
+        Parts parts = MultipartFormMap.formMap(safariExample(), UTF_8, 100, TEMPORARY_FILE_DIRECTORY);
+        assertThat(temporaryFileList().length, equalTo(4));
+
+        parts = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (temporaryFileList().length > 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+        assertThat(SpillFileCleaner.shared().liveFiles(), equalTo(0));
+    }
+
+    @Test
+    public void sweepsAwaySpillFilesLeftByAPreviousRun() throws Exception {
+        File directory = new File("./out/sweep");
+        directory.mkdirs();
+        File leftBehind = new File(directory, "upload.txt-1234.spill");
+        File current = new File(directory, "spill-5678.spill");
+        File somethingElse = new File(directory, "other.txt");
+        try {
+            for (File file : Arrays.asList(leftBehind, current, somethingElse)) {
+                assertTrue(file.createNewFile());
+            }
+            assertTrue(leftBehind.setLastModified(1_000_000_000_000L));
+            assertTrue(somethingElse.setLastModified(1_000_000_000_000L));
+
+            assertThat(SpillFileCleaner.sweep(directory), equalTo(1));
+            assertThat(leftBehind.exists(), equalTo(false));
+            assertThat(current.exists(), equalTo(true));
+            assertThat(somethingElse.exists(), equalTo(true));
+        } finally {
+            current.delete();
+            somethingElse.delete();
+        }
+    }
+
+    @Test
+    public void savesPartsWithNonAsciiFileNamesToDisk() throws Exception {
+        try (Parts parts = MultipartFormMap.formMap(nonAsciiFileNameForm(), UTF_8, 4, TEMPORARY_FILE_DIRECTORY)) {
+            assertNonAsciiFileNamePartSaved(parts);
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+    }
+
+    @Test
+    public void savesAllPartsToDiskOnAWriterThread() throws Exception {
+        ExecutorService spillWriter = Executors.newSingleThreadExecutor();
+        try {
+            Iterable<StreamingPart> form = safariExample();
+
+            try (Parts parts = MultipartFormMap.formMap(form, UTF_8, 100, TEMPORARY_FILE_DIRECTORY, spillWriter)) {
+                Map<String, List<Part>> partMap = parts.partMap;
+
+                allFieldsAreLoadedCorrectly(partMap, false, false, false, false);
+
+                assertThat(temporaryFileList().length, equalTo(4));
+            }
+            assertThat(temporaryFileList().length, equalTo(0));
+        } finally {
+            spillWriter.shutdown();
+        }
+    }
+
+    @Test
+    public void savesPartsWithNonAsciiFileNamesToDiskOnAWriterThread() throws Exception {
+        ExecutorService spillWriter = Executors.newSingleThreadExecutor();
+        try {
+            try (Parts parts = MultipartFormMap.formMap(nonAsciiFileNameForm(), UTF_8, 4, TEMPORARY_FILE_DIRECTORY, spillWriter)) {
+                assertNonAsciiFileNamePartSaved(parts);
+            }
+            assertThat(temporaryFileList().length, equalTo(0));
+        } finally {
+            spillWriter.shutdown();
+        }
+    }
+
+    @Test
+    public void writesBigPartsToDiskInChunksOnAWriterThread() throws Exception {
+        ExecutorService spillWriter = Executors.newSingleThreadExecutor();
+        try {
+            String boundary = "-----1234";
+            StringBuilder contents = new StringBuilder();
+            for (int i = 0; contents.length() < 300_000; i++) {
+                contents.append("line ").append(i).append(StreamingMultipartFormHappyTests.CR_LF);
+            }
+            Iterable<StreamingPart> form = StreamingMultipartFormParts.parse(boundary.getBytes(UTF_8),
+                new ByteArrayInputStream(new ValidMultipartFormBuilder(boundary)
+                    .file("file", "big.txt", "text/plain", contents.toString())
+                    .field("field", "value")
+                    .build()), UTF_8);
+
+            try (Parts parts = MultipartFormMap.formMap(form, UTF_8, 1024, TEMPORARY_FILE_DIRECTORY, spillWriter)) {
+                Part file = parts.partMap.get("file").get(0);
+                assertThat(file.isInMemory(), equalTo(false));
+                assertThat(file.length, equalTo(contents.length()));
+                StreamingMultipartFormHappyTests.compareOneStreamToAnother(
+                    file.getNewInputStream(), new ByteArrayInputStream(contents.toString().getBytes(UTF_8)));
+                assertThat(parts.partMap.get("field").get(0).getString(), equalTo("value"));
+            }
+            assertThat(temporaryFileList().length, equalTo(0));
+        } finally {
+            spillWriter.shutdown();
+        }
+    }
+
+    @Test
+    public void writesPartsWithNonAsciiFileNamesToDiskAsynchronously() throws Exception {
+        try (Parts parts = MultipartFormMap.formMapAsync(nonAsciiFileNameForm(), UTF_8, 4, TEMPORARY_FILE_DIRECTORY).get()) {
+            assertNonAsciiFileNamePartSaved(parts);
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+    }
+
+    @Test
+    public void writesPartsToDiskAsynchronously() throws Exception {
+        String boundary = "-----1234";
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; contents.length() < 1_000_000; i++) {
+            contents.append("line ").append(i).append(StreamingMultipartFormHappyTests.CR_LF);
+        }
+        Iterable<StreamingPart> form = StreamingMultipartFormParts.parse(boundary.getBytes(UTF_8),
+            new ByteArrayInputStream(new ValidMultipartFormBuilder(boundary)
+                .file("file", "big.txt", "text/plain", contents.toString())
+                .field("field", "value")
+                .file("file", "small.txt", "text/plain", contents.substring(0, 2000))
+                .build()), UTF_8);
+
+        List<String> written = new CopyOnWriteArrayList<>();
+        CompletableFuture<Parts> future = MultipartFormMap.formMapAsync(form, UTF_8, 1024, TEMPORARY_FILE_DIRECTORY, part -> {
+            try {
+                // readable as soon as it has been written
+                written.add(new String(part.readRange(0, part.length).array(), UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        try (Parts parts = future.get()) {
+            assertThat(written.size(), equalTo(2));
+            assertTrue(written.contains(contents.toString()));
+            assertTrue(written.contains(contents.substring(0, 2000)));
+
+            Part file = parts.partMap.get("file").get(0);
+            assertThat(file.isInMemory(), equalTo(false));
+            assertThat(file.length, equalTo(contents.length()));
+            StreamingMultipartFormHappyTests.compareOneStreamToAnother(
+                file.getNewInputStream(), new ByteArrayInputStream(contents.toString().getBytes(UTF_8)));
+            assertThat(parts.partMap.get("field").get(0).getString(), equalTo("value"));
+            assertThat(temporaryFileList().length, equalTo(2));
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+    }
+
+    @Test
+    public void waitsForTheWriterThreadToStopIfTheFormIsBad() throws Exception {
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        AtomicInteger writersRunning = new AtomicInteger(0);
+        Executor slowToStart = writer -> {
+            writersRunning.incrementAndGet();
+            threads.execute(() -> {
+                try {
+                    Thread.sleep(100);
+                    writer.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    writersRunning.decrementAndGet();
+                }
+            });
+        };
+        Iterable<StreamingPart> form = StreamingMultipartFormParts.parse(
+            "----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(UTF_8),
+            new FileInputStream("examples/safari-example.multipart"),
+            UTF_8,
+            10_000
+        );
+
+        try (SpillFilePool spillFiles = new SpillFilePool(TEMPORARY_FILE_DIRECTORY, 4)) {
+            try {
+                MultipartFormMap.formMap(form, UTF_8, 100, spillFiles, slowToStart);
+                fail("should have failed because the form is too big");
+            } catch (StreamTooLongException e) {
+                assertThat(e.getMessage(), containsString("Form contents was longer than 10000 bytes"));
+            }
+            assertThat(writersRunning.get(), equalTo(0));
+            for (String file : temporaryFileList()) {
+                assertThat(new File(TEMPORARY_FILE_DIRECTORY, file).length(), equalTo(0L));
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+    }
+
+    @Test
+    public void deletesFilesWrittenAsynchronouslyIfTheFormIsBad() throws Exception {
+        Iterable<StreamingPart> form = StreamingMultipartFormParts.parse(
+            "----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(UTF_8),
+            new FileInputStream("examples/safari-example.multipart"),
+            UTF_8,
+            10_000
+        );
+
+        try {
+            MultipartFormMap.formMapAsync(form, UTF_8, 100, TEMPORARY_FILE_DIRECTORY).get();
+            fail("should have failed because the form is too big");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), containsString("Form contents was longer than 10000 bytes"));
+        }
+        assertThat(temporaryFileList().length, equalTo(0));
+    }
+
+    @Test
+    public void readsDiskBackedPartsFromSeveralThreadsAtOnce() throws Exception {
+        String boundary = "-----1234";
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; contents.length() < 300_000; i++) {
+            contents.append("line ").append(i).append(StreamingMultipartFormHappyTests.CR_LF);
+        }
+        byte[] expected = contents.toString().getBytes(UTF_8);
+        Iterable<StreamingPart> form = StreamingMultipartFormParts.parse(boundary.getBytes(UTF_8),
+            new ByteArrayInputStream(new ValidMultipartFormBuilder(boundary)
+                .file("file", "big.txt", "text/plain", contents.toString())
+                .build()), UTF_8);
+
+        DiskBackedPart file;
+        try (Parts parts = MultipartFormMap.formMap(form, UTF_8, 1024, TEMPORARY_FILE_DIRECTORY)) {
+            file = (DiskBackedPart) parts.partMap.get("file").get(0);
+
+            ExecutorService readers = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<byte[]>> reads = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    int offset = i * 30_000;
+                    reads.add(readers.submit(() -> file.readRange(offset, 20_000).array()));
+                }
+                for (int i = 0; i < reads.size(); i++) {
+                    assertThat(reads.get(i).get(), equalTo(Arrays.copyOfRange(expected, i * 30_000, i * 30_000 + 20_000)));
+                }
+            } finally {
+                readers.shutdown();
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            assertThat(file.read(buffer, expected.length - 5), equalTo(5));
+            assertThat(file.read(buffer, expected.length), equalTo(-1));
+
+            ByteBuffer mapped = file.getMappedByteBuffer();
+            assertThat(mapped.remaining(), equalTo(expected.length));
+            assertThat(mapped.get(12_345), equalTo(expected[12_345]));
+
+            StreamingMultipartFormHappyTests.compareOneStreamToAnother(file.getNewInputStream(), new ByteArrayInputStream(expected));
+        }
+
+        try {
+            file.readRange(0, 10);
+            fail("Should have thrown AlreadyClosedException");
+        } catch (AlreadyClosedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readsNoFurtherThanTheEndOfAPartOnDisk() throws Exception {
+        File theFile = File.createTempFile("longer-", ".spill", TEMPORARY_FILE_DIRECTORY);
+        Files.write(theFile.toPath(), "contents and more".getBytes(UTF_8));
+        DiskBackedPart part = new DiskBackedPart(
+            new PartMetaData("file", false, "text/plain", "file.txt", Collections.emptyMap()) {
+            }, theFile, 8);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(20);
+            assertThat(part.read(buffer, 4), equalTo(4));
+            assertThat(new String(buffer.array(), 0, buffer.position(), UTF_8), equalTo("ents"));
+            assertThat(buffer.limit(), equalTo(20));
+            assertThat(part.read(buffer, 8), equalTo(-1));
+            assertThat(part.read(buffer, 12), equalTo(-1));
+        } finally {
+            part.close();
+        }
+    }
+
+    @Test
+    public void mapsFormOnDiskWithoutCopyingParts() throws Exception {
+        try (FileChannel file = FileChannel.open(Paths.get("examples/safari-example.multipart"))) {
+            Parts parts = MultipartFormMap.formMap(file, "----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(UTF_8), UTF_8);
+            Map<String, List<Part>> partMap = parts.partMap;
+
+            allFieldsAreLoadedCorrectly(partMap, true, true, true, true);
+
+            ByteBufferPart jpeg = (ByteBufferPart) partMap.get("uploadManuscript").get(1);
+            assertTrue("slice of the mapped file", jpeg.getByteBuffer() instanceof MappedByteBuffer);
+            assertThat(jpeg.getByteBuffer().remaining(), equalTo(jpeg.length));
+            assertThat(temporaryFileList().length, equalTo(0));
+        }
+    }
+
+    @Test
+    public void parsesPartsInPlaceFromAByteBuffer() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", "This is the content of the file\n")
+            .field("field", "fieldValue" + StreamingMultipartFormHappyTests.CR_LF + "with cr lf")
+            .build();
+        ByteBuffer body = ByteBuffer.allocateDirect(form.length + 20);
+        body.position(10);
+        body.put(form);
+        body.flip();
+        body.position(10);
+
+        Parts parts = MultipartFormMap.formMap(body, boundary.getBytes(UTF_8), UTF_8);
+
+        assertThat(parts.partMap.get("file").get(0).getString(), equalTo("This is the content of the file\n"));
+        assertThat(parts.partMap.get("field").get(0).getString(), equalTo("fieldValue" + StreamingMultipartFormHappyTests.CR_LF + "with cr lf"));
+        assertThat(body.position(), equalTo(10));
+    }
+
+    @Test
+    public void partsOfAByteArrayBodyAreViewsOfIt() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", "This is the content of the file\n")
+            .field("multi", "value1")
+            .field("multi", "value2")
+            .build();
+        byte[] body = new byte[form.length + 7];
+        System.arraycopy(form, 0, body, 5, form.length);
+
+        Parts parts = MultipartFormMap.formMap(body, 5, form.length, boundary.getBytes(UTF_8), UTF_8);
+
+        Part file = parts.partMap.get("file").get(0);
+        assertThat(file.isInMemory(), equalTo(true));
+        assertThat(file.getString(), equalTo("This is the content of the file\n"));
+        assertThat(new String(file.getBytes(), UTF_8), equalTo("This is the content of the file\n"));
+        StreamingMultipartFormHappyTests.compareOneStreamToAnother(parts.partMap.get("multi").get(1).getNewInputStream(), new ByteArrayInputStream("value2".getBytes()));
+
+        ByteBuffer view = ((InMemoryPart) parts.partMap.get("multi").get(0)).getByteBuffer();
+        int valueAt = new String(body, ISO_8859_1).indexOf("value1");
+        body[valueAt] = 'V';
+        assertThat(view.get(0), equalTo((byte) 'V'));
+    }
+
     @Test
     public void throwsExceptionIfMultipartMalformed() throws Exception {
         Iterable<StreamingPart> form = StreamingMultipartFormParts.parse(
@@ -194,10 +661,25 @@ public class MultipartFormMapTest {
 
     }
 
-    private void assertPartSaved(final String fileName, String[] files) {
-        assertTrue(
-            "couldn't find " + fileName + " in " + Arrays.toString(files),
-            files[0].contains(fileName) || files[1].contains(fileName));
+    private static Iterable<StreamingPart> nonAsciiFileNameForm() {
+        String boundary = "-----1234";
+        return StreamingMultipartFormParts.parse(boundary.getBytes(UTF_8),
+            new ByteArrayInputStream(new ValidMultipartFormBuilder(boundary)
+                .file("file", NON_ASCII_FILE_NAME, "text/plain", "more than the threshold")
+                .build()), UTF_8);
+    }
+
+    private void assertNonAsciiFileNamePartSaved(Parts parts) throws Exception {
+        DiskBackedPart file = (DiskBackedPart) parts.partMap.get("file").get(0);
+        assertThat(file.fileName, equalTo(NON_ASCII_FILE_NAME));
+        assertThat(new String(file.readRange(0, file.length).array(), UTF_8), equalTo("more than the threshold"));
+        assertSpillFilesNamedSafely(temporaryFileList());
+    }
+
+    private void assertSpillFilesNamedSafely(String[] files) {
+        for (String file : files) {
+            assertTrue("spill file named after the upload: " + file, file.matches("spill-[0-9]+\\.spill"));
+        }
     }
 
     private void assertFileIsCorrect(Part filePart, String expectedFilename, boolean inMemory) throws IOException {
@@ -210,7 +692,8 @@ public class MultipartFormMapTest {
         StreamingMultipartFormHappyTests.compareStreamToFile(inputStream, filePart.getFileName());
     }
 
-    private String[] temporaryFileList() {
+    private String[] temporaryFileList() throws InterruptedException {
+        assertTrue(SpillFileCleaner.shared().awaitCleanup(10, TimeUnit.SECONDS));
         return TEMPORARY_FILE_DIRECTORY.list();
     }
 }
@@ -0,0 +1,225 @@
+package org.tiestvilee.multipartform;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.tiestvilee.multipartform.exceptions.StreamTooLongException;
+import org.tiestvilee.multipartform.part.StreamingPart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.tiestvilee.multipartform.StreamingMultipartFormHappyTests.compareOneStreamToAnother;
+
+public class MultipartFormPublisherTest {
+
+    @Test
+    public void publishesPartsAndContentsOnlyWhenRequested() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", "This is the content of the file")
+            .field("field", "fieldValue")
+            .build();
+        MultipartFormPublisher publisher = publisherFor(boundary, form);
+
+        RecordingSubscriber<StreamingPart> parts = new RecordingSubscriber<>();
+        publisher.subscribe(parts);
+        assertThat(parts.items.size(), equalTo(0));
+
+        parts.subscription.request(1);
+        assertThat(parts.items.size(), equalTo(1));
+        StreamingPart file = parts.items.get(0);
+        assertThat(file.fieldName, equalTo("file"));
+        assertThat(file.fileName, equalTo("foo.tab"));
+
+        parts.subscription.request(1);
+        assertThat("next part waits for the contents of this one", parts.items.size(), equalTo(1));
+
+        RecordingSubscriber<ByteBuffer> contents = new RecordingSubscriber<>();
+        MultipartFormPublisher.contents(file).subscribe(contents);
+        assertThat(contents.items.size(), equalTo(0));
+
+        contents.subscription.request(Long.MAX_VALUE);
+        assertThat(contents.asString(), equalTo("This is the content of the file"));
+        assertThat(contents.completed, equalTo(true));
+
+        assertThat(parts.items.size(), equalTo(2));
+        assertThat(parts.items.get(1).fieldName, equalTo("field"));
+        assertThat(parts.completed, equalTo(false));
+
+        MultipartFormPublisher.contents(parts.items.get(1)).subscribe(contents = new RecordingSubscriber<>());
+        contents.subscription.request(1);
+        assertThat(contents.asString(), equalTo("fieldValue"));
+
+        contents.subscription.request(1);
+        assertThat(contents.completed, equalTo(true));
+        assertThat("no more parts were requested", parts.completed, equalTo(false));
+
+        parts.subscription.request(1);
+        assertThat(parts.completed, equalTo(true));
+        assertThat(parts.error, equalTo(null));
+    }
+
+    @Test
+    public void publishesRealLifeExampleABufferAtATime() throws Exception {
+        FileChannel channel = FileChannel.open(Paths.get("examples/safari-example.multipart"));
+        MultipartFormPublisher publisher = new MultipartFormPublisher(
+            StreamingMultipartFormParts.parse("----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(UTF_8), channel, UTF_8));
+
+        List<byte[]> allContents = new ArrayList<>();
+        publisher.subscribe(new Subscriber<StreamingPart>() {
+            private Subscription subscription;
+
+            @Override public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override public void onNext(StreamingPart part) {
+                RecordingSubscriber<ByteBuffer> contents = new RecordingSubscriber<ByteBuffer>() {
+                    @Override public void onNext(ByteBuffer item) {
+                        super.onNext(item);
+                        subscription.request(1);
+                    }
+
+                    @Override public void onComplete() {
+                        allContents.add(asBytes());
+                    }
+                };
+                MultipartFormPublisher.contents(part).subscribe(contents);
+                contents.subscription.request(1);
+                subscription.request(1);
+            }
+
+            @Override public void onError(Throwable t) {
+                throw new AssertionError(t);
+            }
+
+            @Override public void onComplete() {
+            }
+        });
+
+        assertThat(allContents.size(), equalTo(5));
+        assertThat(new String(allContents.get(0), UTF_8), equalTo("obituary"));
+        compareOneStreamToAnother(new ByteArrayInputStream(allContents.get(2)), new FileInputStream("examples/starbucks.jpeg"));
+        compareOneStreamToAnother(new ByteArrayInputStream(allContents.get(4)), new FileInputStream("examples/utf8\uD83D\uDCA9.txt"));
+    }
+
+    @Test
+    public void cancellingContentsSkipsToTheNextPart() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .field("skipped", "not wanted")
+            .field("kept", "wanted")
+            .build();
+        MultipartFormPublisher publisher = publisherFor(boundary, form);
+
+        RecordingSubscriber<StreamingPart> parts = new RecordingSubscriber<>();
+        publisher.subscribe(parts);
+        parts.subscription.request(2);
+
+        RecordingSubscriber<ByteBuffer> skipped = new RecordingSubscriber<>();
+        MultipartFormPublisher.contents(parts.items.get(0)).subscribe(skipped);
+        skipped.subscription.cancel();
+
+        assertThat(parts.items.size(), equalTo(2));
+        RecordingSubscriber<ByteBuffer> kept = new RecordingSubscriber<>();
+        MultipartFormPublisher.contents(parts.items.get(1)).subscribe(kept);
+        kept.subscription.request(Long.MAX_VALUE);
+
+        assertThat(kept.asString(), equalTo("wanted"));
+        assertThat(skipped.items.size(), equalTo(0));
+    }
+
+    @Test
+    public void signalsErrorsToSubscribers() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary).field("field", "value").build();
+        MultipartFormPublisher publisher = publisherFor(boundary, form);
+
+        RecordingSubscriber<StreamingPart> parts = new RecordingSubscriber<>();
+        publisher.subscribe(parts);
+        RecordingSubscriber<StreamingPart> second = new RecordingSubscriber<>();
+        publisher.subscribe(second);
+        assertThat(second.error, instanceOf(IllegalStateException.class));
+
+        parts.subscription.request(0);
+        assertThat(parts.error, instanceOf(IllegalArgumentException.class));
+    }
+
+    @Test
+    public void signalsParseErrorsToPartAndContentsSubscribers() throws Exception {
+        String boundary = "-----1234";
+        char[] value = new char[1000];
+        Arrays.fill(value, 'x');
+        byte[] form = new ValidMultipartFormBuilder(boundary).field("field", new String(value)).build();
+        MultipartFormPublisher publisher = new MultipartFormPublisher(
+            StreamingMultipartFormParts.parse(boundary.getBytes(UTF_8), new ByteArrayInputStream(form), UTF_8, 500));
+
+        RecordingSubscriber<StreamingPart> parts = new RecordingSubscriber<>();
+        publisher.subscribe(parts);
+        parts.subscription.request(1);
+
+        RecordingSubscriber<ByteBuffer> contents = new RecordingSubscriber<>();
+        MultipartFormPublisher.contents(parts.items.get(0)).subscribe(contents);
+        contents.subscription.request(Long.MAX_VALUE);
+
+        assertThat(contents.completed, equalTo(false));
+        assertThat(contents.error, instanceOf(StreamTooLongException.class));
+        assertThat(parts.error, equalTo(contents.error));
+    }
+
+    private MultipartFormPublisher publisherFor(String boundary, byte[] form) {
+        return new MultipartFormPublisher(
+            StreamingMultipartFormParts.parse(boundary.getBytes(UTF_8), new ByteArrayInputStream(form), UTF_8));
+    }
+
+    private static class RecordingSubscriber<T> implements Subscriber<T> {
+        final List<T> items = new ArrayList<>();
+        Subscription subscription;
+        boolean completed = false;
+        Throwable error = null;
+
+        @Override public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override public void onComplete() {
+            completed = true;
+        }
+
+        byte[] asBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (T item : items) {
+                ByteBuffer buffer = ((ByteBuffer) item).duplicate();
+                while (buffer.hasRemaining()) {
+                    bytes.write(buffer.get());
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        String asString() {
+            return new String(asBytes(), UTF_8);
+        }
+    }
+}
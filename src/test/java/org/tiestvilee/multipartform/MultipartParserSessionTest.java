@@ -0,0 +1,137 @@
+package org.tiestvilee.multipartform;
+
+import org.junit.Test;
+import org.tiestvilee.multipartform.exceptions.AlreadyClosedException;
+import org.tiestvilee.multipartform.part.StreamingPart;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.util.Iterator;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeThat;
+import static org.tiestvilee.multipartform.StreamingMultipartFormHappyTests.*;
+
+public class MultipartParserSessionTest {
+
+    @Test
+    public void parsesOneFormAfterAnother() throws Exception {
+        MultipartParserSession session = new MultipartParserSession(UTF_8);
+
+        for (int i = 0; i < 3; i++) {
+            String boundary = "-----" + (i % 2);
+            Iterator<StreamingPart> form = session.reset(boundary.getBytes(UTF_8), new ByteArrayInputStream(
+                new ValidMultipartFormBuilder(boundary)
+                    .startMultipart("mixed", "7890")
+                    .attachment("during.txt", "plain/text", "Attachment contents " + i)
+                    .endMultipart()
+                    .field("field", "value " + i)
+                    .build())).iterator();
+
+            assertFilePart(form, "mixed", "during.txt", "plain/text", "Attachment contents " + i);
+            assertFieldPart(form, "field", "value " + i);
+            assertThereAreNoMoreParts(form);
+            session.release();
+        }
+
+        Iterator<StreamingPart> form = session.reset("----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(UTF_8),
+            new FileInputStream("examples/safari-example.multipart"), 1024 * 1024).iterator();
+        assertFieldPart(form, "articleType", "obituary");
+        compareStreamToFile(assertNextPart(form));
+        compareStreamToFile(assertNextPart(form));
+        session.release();
+    }
+
+    @Test
+    public void parsesFormsWithADirectBuffer() throws Exception {
+        MultipartParserSession session = new MultipartParserSession(UTF_8, 4096, true);
+
+        for (int i = 0; i < 2; i++) {
+            Iterator<StreamingPart> form = session.reset("----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(UTF_8),
+                new FileInputStream("examples/safari-example.multipart"), 1024 * 1024).iterator();
+            assertFieldPart(form, "articleType", "obituary");
+            compareStreamToFile(assertNextPart(form));
+            compareStreamToFile(assertNextPart(form));
+            session.release();
+        }
+    }
+
+    @Test
+    public void goesBackToTheFastSearchForTheFormAfterACraftedOne() throws Exception {
+        MultipartParserSession session = new MultipartParserSession(UTF_8);
+        String boundary = "----" + repeat("abc", 10);
+        String nearMisses = repeat("abc", 1300); // each position matches a long way back before it misses
+
+        Iterator<StreamingPart> form = session.reset(boundary.getBytes(UTF_8), new ByteArrayInputStream(
+            new ValidMultipartFormBuilder(boundary).field("crafted", nearMisses).build())).iterator();
+        assertFieldPart(form, "crafted", nearMisses);
+        assertThereAreNoMoreParts(form);
+        // the vector search on Java 17+ isn't slowed down by this body, so never switches
+        assumeThat(session.searchingLinearly(), equalTo(true));
+        session.release();
+
+        form = session.reset(boundary.getBytes(UTF_8), new ByteArrayInputStream(
+            new ValidMultipartFormBuilder(boundary).field("ordinary", "value").build())).iterator();
+        assertFieldPart(form, "ordinary", "value");
+        assertThereAreNoMoreParts(form);
+        assertThat(session.searchingLinearly(), equalTo(false));
+        session.release();
+    }
+
+    @Test
+    public void partsOfAReleasedFormCannotBeRead() throws Exception {
+        String boundary = "-----1234";
+        MultipartParserSession session = new MultipartParserSession(UTF_8);
+        Iterator<StreamingPart> form = session.reset(boundary.getBytes(UTF_8), new ByteArrayInputStream(
+            new ValidMultipartFormBuilder(boundary).field("first", "value").field("second", "value").build())).iterator();
+        StreamingPart part = form.next();
+        session.release();
+
+        session.reset(boundary.getBytes(UTF_8), new ByteArrayInputStream(
+            new ValidMultipartFormBuilder(boundary).field("other", "other value").build()));
+
+        try {
+            part.inputStream.read();
+            fail("Should have thrown AlreadyClosedException");
+        } catch (AlreadyClosedException e) {
+            // expected
+        }
+        try {
+            form.hasNext();
+            fail("Should have thrown IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void cannotStartAFormBeforeReleasingTheLastOne() throws Exception {
+        String boundary = "-----1234";
+        byte[] body = new ValidMultipartFormBuilder(boundary).field("field", "value").build();
+        MultipartParserSession session = new MultipartParserSession(UTF_8);
+        session.reset(boundary.getBytes(UTF_8), new ByteArrayInputStream(body));
+
+        try {
+            session.reset(boundary.getBytes(UTF_8), new ByteArrayInputStream(body));
+            fail("Should have thrown IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static StreamingPart assertNextPart(Iterator<StreamingPart> form) {
+        assertThereAreMoreParts(form);
+        return form.next();
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            result.append(s);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package org.tiestvilee.multipartform;
+
+import org.junit.Test;
+import org.tiestvilee.multipartform.exceptions.StreamTooLongException;
+import org.tiestvilee.multipartform.exceptions.TokenNotFoundException;
+import org.tiestvilee.multipartform.part.PartMetaData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.tiestvilee.multipartform.StreamingMultipartFormHappyTests.CR_LF;
+
+public class MultipartPushParserTest {
+
+    @Test
+    public void parsesFormFedInChunksOfEverySize() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", "This is the content of the file\n" + CR_LF + "-------123" + CR_LF + "--")
+            .field("field", "fieldValue" + CR_LF + "with cr lf")
+            .rawPart(
+                "Content-Disposition: form-data;\r\n" +
+                    "     name=\"multi\"\r\n" +
+                    "\r\n" +
+                    "value1")
+            .startMultipart("multipartFieldName", "7890")
+            .attachment("during.txt", "plain/text", "Attachment contents here")
+            .endMultipart()
+            .field("empty", "")
+            .build();
+
+        for (int chunkSize = 1; chunkSize <= form.length; chunkSize++) {
+            RecordingListener listener = feedInChunks(boundary, form, chunkSize);
+
+            assertThat("chunk size " + chunkSize, listener.parts, equalTo(Arrays.asList(
+                "file|foo.tab|text/whatever|This is the content of the file\n" + CR_LF + "-------123" + CR_LF + "--",
+                "field|null|null|fieldValue" + CR_LF + "with cr lf",
+                "multi|null|null|value1",
+                "multipartFieldName|during.txt|plain/text|Attachment contents here",
+                "empty|null|null|")));
+        }
+    }
+
+    @Test
+    public void parsesRealLifeExampleFedInRandomChunks() throws Exception {
+        byte[] form = Files.readAllBytes(Paths.get("examples/safari-example.multipart"));
+        Random random = new Random(1234);
+        RecordingListener listener = new RecordingListener();
+        MultipartPushParser parser = new MultipartPushParser("----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(UTF_8), UTF_8, listener);
+
+        int position = 0;
+        while (position < form.length) {
+            int length = Math.min(form.length - position, 1 + random.nextInt(10_000));
+            parser.feed(ByteBuffer.wrap(form, position, length));
+            position += length;
+        }
+        parser.end();
+
+        assertThat(listener.contents.size(), equalTo(5));
+        assertThat(new String(listener.contents.get(0), UTF_8), equalTo("obituary"));
+        assertContentsIsFile(listener.contents.get(1), "simple7bit.txt");
+        assertContentsIsFile(listener.contents.get(2), "starbucks.jpeg");
+        assertContentsIsFile(listener.contents.get(3), "utf8\uD83D\uDCA9.file");
+        assertContentsIsFile(listener.contents.get(4), "utf8\uD83D\uDCA9.txt");
+    }
+
+    @Test
+    public void failsWhenNoBoundaryInStream() throws Exception {
+        MultipartPushParser parser = new MultipartPushParser("---1234".getBytes(UTF_8), UTF_8, new RecordingListener());
+
+        try {
+            parser.feed(ByteBuffer.wrap("No boundary anywhere".getBytes(UTF_8)));
+            fail("Should have thrown TokenNotFoundException");
+        } catch (TokenNotFoundException e) {
+            assertThat(e.getMessage(), equalTo("Boundary not found <<-----1234>>"));
+        }
+    }
+
+    @Test
+    public void failsIfStreamEndsBeforeClosingBoundary() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary).field("field", "value").build();
+        MultipartPushParser parser = new MultipartPushParser(boundary.getBytes(UTF_8), UTF_8, new RecordingListener());
+
+        parser.feed(ByteBuffer.wrap(form, 0, form.length - 10));
+        assertThat(parser.isComplete(), equalTo(false));
+        try {
+            parser.end();
+            fail("Should have thrown TokenNotFoundException");
+        } catch (TokenNotFoundException e) {
+            assertThat(e.getMessage(), equalTo("Reached end of stream before the end of the form"));
+        }
+    }
+
+    @Test
+    public void failsIfFormIsTooBig() throws Exception {
+        String boundary = "-----1234";
+        byte[] form = new ValidMultipartFormBuilder(boundary).field("field", "value").build();
+        MultipartPushParser parser = new MultipartPushParser(boundary.getBytes(UTF_8), UTF_8, 20, new RecordingListener());
+
+        try {
+            parser.feed(ByteBuffer.wrap(form));
+            fail("Should have thrown StreamTooLongException");
+        } catch (StreamTooLongException e) {
+            assertThat(e.getMessage(), equalTo("Form contents was longer than 20 bytes"));
+        }
+    }
+
+    private RecordingListener feedInChunks(String boundary, byte[] form, int chunkSize) throws IOException {
+        RecordingListener listener = new RecordingListener();
+        MultipartPushParser parser = new MultipartPushParser(boundary.getBytes(UTF_8), UTF_8, listener);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+        for (int position = 0; position < form.length; position += chunkSize) {
+            chunk.clear();
+            chunk.put(form, position, Math.min(chunkSize, form.length - position));
+            chunk.flip();
+            parser.feed(chunk);
+            assertThat("whole chunk consumed", chunk.hasRemaining(), equalTo(false));
+        }
+        parser.end();
+        assertThat(parser.isComplete(), equalTo(true));
+        return listener;
+    }
+
+    private void assertContentsIsFile(byte[] contents, String fileName) throws IOException {
+        StreamingMultipartFormHappyTests.compareOneStreamToAnother(
+            new ByteArrayInputStream(contents), new FileInputStream("examples/" + fileName));
+    }
+
+    private static class RecordingListener implements MultipartPushParser.Listener {
+        final List<String> parts = new ArrayList<>();
+        final List<byte[]> contents = new ArrayList<>();
+        private PartMetaData current;
+        private ByteArrayOutputStream data;
+
+        @Override public void partStart(PartMetaData part) {
+            assertThat("previous part ended", current, equalTo(null));
+            current = part;
+            data = new ByteArrayOutputStream();
+        }
+
+        @Override public void partData(ByteBuffer slice) {
+            byte[] bytes = new byte[slice.remaining()];
+            slice.get(bytes);
+            data.write(bytes, 0, bytes.length);
+        }
+
+        @Override public void partEnd() {
+            parts.add(current.fieldName + "|" + current.fileName + "|" + current.contentType + "|" + new String(data.toByteArray(), UTF_8));
+            contents.add(data.toByteArray());
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.tiestvilee.multipartform;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PartHeadersTest {
+
+    @Test
+    public void looksUpNamesIgnoringCase() throws Exception {
+        PartHeaders headers = new PartHeaders(UTF_8);
+        add(headers, "x-custom", "value");
+
+        assertThat(headers.get("X-Custom"), equalTo("value"));
+        assertThat(headers.get("X-CUSTOM"), equalTo("value"));
+        assertThat(headers.containsKey("x-Custom"), equalTo(true));
+        assertThat(headers.get("X-Other"), equalTo(null));
+    }
+
+    @Test
+    public void sharesWellKnownNames() throws Exception {
+        PartHeaders headers = new PartHeaders(UTF_8);
+
+        assertThat(add(headers, "content-TYPE", "text/plain"), sameInstance(PartHeaders.CONTENT_TYPE));
+        assertThat(add(headers, "Content-Disposition", "form-data"), sameInstance(PartHeaders.CONTENT_DISPOSITION));
+        assertThat(headers.keySet().iterator().next(), sameInstance(PartHeaders.CONTENT_TYPE));
+    }
+
+    @Test
+    public void repeatedHeaderReplacesEarlierOneWhateverItsCase() throws Exception {
+        PartHeaders headers = new PartHeaders(UTF_8);
+        add(headers, "Content-Type", "text/plain");
+        add(headers, "X-Custom", "first");
+        add(headers, "x-custom", "second");
+
+        assertThat(headers.size(), equalTo(2));
+        assertThat(headers.get("X-Custom"), equalTo("second"));
+    }
+
+    @Test
+    public void foldsLinesIntoValues() throws Exception {
+        PartHeaders headers = new PartHeaders(UTF_8);
+        add(headers, "X-Custom", "first");
+        add(headers, "Content-Disposition", "form-data;");
+        fold(headers, "Content-Disposition", "name=\"field\"");
+        // X-Custom's value is no longer at the end of the bytes
+        fold(headers, "X-Custom", "more");
+        fold(headers, "Content-Disposition", "filename=\"utf8💩.txt\"");
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("X-Custom", "first; more");
+        expected.put("Content-Disposition", "form-data;; name=\"field\"; filename=\"utf8💩.txt\"");
+        assertThat(headers, equalTo(expected));
+    }
+
+    @Test
+    public void actsAsAMapOfStrings() throws Exception {
+        PartHeaders headers = new PartHeaders(UTF_8);
+        add(headers, "X-Custom", "from bytes");
+        assertThat(headers.put("x-custom", "put"), equalTo("from bytes"));
+        headers.put("Another", "value");
+        fold(headers, "Another", "folded");
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("x-custom", "put");
+        expected.put("Another", "value; folded");
+        assertThat(headers, equalTo(expected));
+        assertThat(headers.hashCode(), equalTo(expected.hashCode()));
+    }
+
+    private String add(PartHeaders headers, String name, String value) {
+        byte[] line = (name + value).getBytes(UTF_8);
+        int nameLength = name.getBytes(UTF_8).length;
+        return headers.add(line, 0, nameLength, nameLength, line.length);
+    }
+
+    private void fold(PartHeaders headers, String name, String value) {
+        byte[] line = value.getBytes(UTF_8);
+        headers.fold(name, line, 0, line.length);
+    }
+}
@@ -4,6 +4,8 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.tiestvilee.multipartform.part.StreamingPart;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -47,6 +49,59 @@ public class SpeedTest {
 
     }
 
+    @Test
+    @Ignore
+    public void partialBoundariesDoNotSlowParsing() throws Exception {
+        String dashes = "----------------------------------------------------------------------";
+        String[] boundaries = new String[]{"-----hghdjhebvjgbg", "----WebKitFormBoundary6LmirFeqsyCQRtbj", dashes.substring(2)};
+
+        for (String boundary : boundaries) {
+            String nearMiss = CR_LF + "--" + boundary.substring(0, boundary.length() - 1) + "x";
+            String wrongFirstByte = "x\n--" + boundary;
+            for (double density : new double[]{0, 0.01, 0.1, 0.5, 1}) {
+                timePartialBoundaries(boundary, nearMiss, density);
+                timePartialBoundaries(boundary, wrongFirstByte, density);
+            }
+            timePartialBoundaries(boundary, dashes, 1); // every position is the start of a partial boundary
+        }
+    }
+
+    private void timePartialBoundaries(String boundary, String nearMiss, double density) throws IOException {
+        Random r = new Random(1234);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + boundary + CR_LF + "Content-Disposition: form-data; name=\"file\"; filename=\"foo.bin\"" + CR_LF + CR_LF).getBytes(UTF_8));
+        byte[] nearMissBytes = nearMiss.getBytes(UTF_8);
+        byte[] random = new byte[nearMissBytes.length];
+        while (body.size() < 20_000_000) {
+            if (r.nextDouble() < density) {
+                body.write(nearMissBytes);
+            } else {
+                r.nextBytes(random);
+                body.write(random);
+            }
+        }
+        body.write((CR_LF + "--" + boundary + "--" + CR_LF).getBytes(UTF_8));
+        byte[] bytes = body.toByteArray();
+
+        byte[] buffer = new byte[65536];
+        List<Long> timings = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            long start = System.nanoTime();
+            for (StreamingPart part : StreamingMultipartFormParts.parse(boundary.getBytes(UTF_8), new ByteArrayInputStream(bytes), UTF_8)) {
+                //noinspection StatementWithEmptyBody
+                while (part.inputStream.read(buffer, 0, buffer.length) >= 0) {
+                    // just scanning
+                }
+            }
+            timings.add(System.nanoTime() - start);
+        }
+        timings.sort(Long::compareTo);
+        double msPer10MB = timings.get(timings.size() / 2) / 1_000_000.0 * 10_000_000 / bytes.length;
+
+        System.out.println(String.format("boundary %3d bytes, %-12s density %4.2f -> %7.2f ms / 10MB",
+            boundary.length(), nearMiss.startsWith(CR_LF) ? "wrong last" : nearMiss.startsWith("x") ? "wrong first" : "dashes", density, msPer10MB));
+    }
+
     private void timeFile(File bigFile, String boundary, String fullBoundary, Random r, long fileCount, long fileSize, PrintWriter results) throws IOException {
         long approximateFileSize = fileSize * fileCount + (fileCount * 129);
         if (approximateFileSize > 150_000_000) {
@@ -2,14 +2,21 @@ package org.tiestvilee.multipartform;
 
 import org.junit.Test;
 import org.tiestvilee.multipartform.exceptions.AlreadyClosedException;
+import org.tiestvilee.multipartform.part.PartMetaData;
 import org.tiestvilee.multipartform.part.StreamingPart;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -139,6 +146,56 @@ public class StreamingMultipartFormHappyTests {
         assertThereAreNoMoreParts(form);
     }
 
+    @Test
+    public void readsPartsInBulkThroughNearMissBoundaries() throws Exception {
+        String boundary = "-----1234";
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; contents.length() < 50_000; i++) {
+            contents.append("line ").append(i).append(CR_LF).append("-------123").append(CR_LF).append("--").append(CR_LF + CR_LF);
+        }
+        Iterator<StreamingPart> form = getMultipartFormParts(boundary,
+            new ValidMultipartFormBuilder(boundary)
+                .file("file", "foo.tab", "text/whatever", contents.toString())
+                .field("field", contents.toString())
+                .build());
+
+        assertFilePart(form, "file", "foo.tab", "text/whatever", contents.toString(), StandardCharsets.UTF_8, 100_000);
+
+        StreamingPart field = form.next();
+        byte[] buffer = new byte[contents.length() + 10];
+        int length = 0;
+        int chunkSize = 1;
+        while (true) {
+            int count = field.inputStream.read(buffer, length, Math.min(chunkSize++, buffer.length - length));
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+        assertThat(new String(buffer, 0, length, StandardCharsets.UTF_8), equalTo(contents.toString()));
+
+        assertThereAreNoMoreParts(form);
+    }
+
+    @Test
+    public void readsHeadersWhateverTheCaseOfTheirNames() throws Exception {
+        String boundary = "-----1234";
+        Iterator<StreamingPart> form = getMultipartFormParts(boundary,
+            new ValidMultipartFormBuilder(boundary)
+                .rawPart(
+                    "content-disposition: form-data; name=\"file\"; filename=\"foo.tab\"\r\n" +
+                        "CONTENT-TYPE: text/whatever\r\n" +
+                        "\r\n" +
+                        "This is the content of the file")
+                .build());
+
+        StreamingPart file = assertFilePart(form, "file", "foo.tab", "text/whatever", "This is the content of the file");
+        assertThat(file.getHeaders().get("Content-Type"), equalTo("text/whatever"));
+        assertThat(file.getHeaders().get("content-type"), equalTo("text/whatever"));
+
+        assertThereAreNoMoreParts(form);
+    }
+
     @Test
     public void uploadFieldsWithMultilineHeaders() throws Exception {
         String boundary = "-----1234";
@@ -299,6 +356,170 @@ public class StreamingMultipartFormHappyTests {
 
     }
 
+    @Test
+    public void canLoadComplexRealLifeSafariExampleFromAChannel() throws Exception {
+        try (FileChannel channel = FileChannel.open(Paths.get("examples/safari-example.multipart"))) {
+            Iterator<StreamingPart> parts = StreamingMultipartFormParts.parse(
+                "----WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes(StandardCharsets.UTF_8),
+                channel,
+                StandardCharsets.UTF_8
+            ).iterator();
+
+            assertFieldPart(parts, "articleType", "obituary");
+
+            assertRealLifeFile(parts, "simple7bit.txt", "text/plain");
+            assertRealLifeFileSlices(parts, "starbucks.jpeg");
+            assertRealLifeFileSlices(parts, "utf8\uD83D\uDCA9.file");
+            assertRealLifeFile(parts, "utf8\uD83D\uDCA9.txt", "text/plain");
+        }
+    }
+
+    @Test
+    public void readsPartsAsSlicesThroughNearMissBoundaries() throws Exception {
+        String boundary = "-----1234";
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; contents.length() < 50_000; i++) {
+            contents.append("line ").append(i).append(CR_LF).append("-------123").append(CR_LF).append("--").append(CR_LF + CR_LF);
+        }
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", contents.toString())
+            .field("field", "fieldValue")
+            .build();
+        Iterator<StreamingPart> parts = StreamingMultipartFormParts.parse(
+            boundary.getBytes(StandardCharsets.UTF_8),
+            Channels.newChannel(new ByteArrayInputStream(form)),
+            StandardCharsets.UTF_8).iterator();
+
+        assertThat(new String(readAllSlices(parts.next()), StandardCharsets.UTF_8), equalTo(contents.toString()));
+        assertFieldPart(parts, "field", "fieldValue");
+
+        assertThereAreNoMoreParts(parts);
+    }
+
+    @Test
+    public void readsPartsThroughADirectBuffer() throws Exception {
+        String boundary = "-----1234";
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; contents.length() < 50_000; i++) {
+            contents.append("line ").append(i).append(CR_LF).append("-------123").append(CR_LF);
+        }
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", contents.toString())
+            .field("field", "fieldValue")
+            .build();
+        Iterator<StreamingPart> parts = StreamingMultipartFormParts.parse(
+            boundary.getBytes(StandardCharsets.UTF_8),
+            Channels.newChannel(new ByteArrayInputStream(form)),
+            StandardCharsets.UTF_8, -1, true).iterator();
+
+        StreamingPart file = parts.next();
+        ByteBuffer slice = file.readSlice();
+        assertThat("slice is direct", slice.isDirect(), equalTo(true));
+        byte[] start = new byte[slice.remaining()];
+        slice.get(start);
+        assertThat(new String(start, StandardCharsets.UTF_8) + new String(readAllSlices(file), StandardCharsets.UTF_8),
+            equalTo(contents.toString()));
+        assertFieldPart(parts, "field", "fieldValue");
+
+        assertThereAreNoMoreParts(parts);
+    }
+
+    @Test
+    public void skipsContentsWithoutReadingThem() throws Exception {
+        String boundary = "-----1234";
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; contents.length() < 50_000; i++) {
+            contents.append("line ").append(i).append(CR_LF).append("-------123").append(CR_LF);
+        }
+        Iterator<StreamingPart> form = getMultipartFormParts(boundary, new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", contents.toString())
+            .field("field", "fieldValue")
+            .build());
+
+        InputStream file = form.next().inputStream;
+        assertThat(file.skip(5), equalTo(5L));
+        assertThat((char) file.read(), equalTo('0'));
+        long skipped = 0, count;
+        while ((count = file.skip(Long.MAX_VALUE)) > 0) {
+            skipped += count;
+        }
+        assertThat(skipped, equalTo(contents.length() - 6L));
+        assertThat(file.read(), equalTo(-1));
+
+        assertFieldPart(form, "field", "fieldValue");
+        assertThereAreNoMoreParts(form);
+    }
+
+    @Test
+    public void transfersContentsToAStreamOrAChannel() throws Exception {
+        String boundary = "-----1234";
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; contents.length() < 50_000; i++) {
+            contents.append("line ").append(i).append(CR_LF).append("-------123").append(CR_LF);
+        }
+        byte[] form = new ValidMultipartFormBuilder(boundary)
+            .file("file", "foo.tab", "text/whatever", contents.toString())
+            .file("another", "bar.tab", "text/whatever", contents.toString())
+            .field("field", "fieldValue")
+            .build();
+
+        for (boolean directBuffer : new boolean[]{false, true}) {
+            Iterator<StreamingPart> parts = StreamingMultipartFormParts.parse(
+                boundary.getBytes(StandardCharsets.UTF_8),
+                Channels.newChannel(new ByteArrayInputStream(form)),
+                StandardCharsets.UTF_8, -1, directBuffer).iterator();
+
+            ByteArrayOutputStream toStream = new ByteArrayOutputStream();
+            assertThat(parts.next().transferTo(toStream), equalTo((long) contents.length()));
+            assertThat(new String(toStream.toByteArray(), StandardCharsets.UTF_8), equalTo(contents.toString()));
+
+            ByteArrayOutputStream toChannel = new ByteArrayOutputStream();
+            assertThat(parts.next().transferTo(Channels.newChannel(toChannel)), equalTo((long) contents.length()));
+            assertThat(new String(toChannel.toByteArray(), StandardCharsets.UTF_8), equalTo(contents.toString()));
+
+            assertFieldPart(parts, "field", "fieldValue");
+            assertThereAreNoMoreParts(parts);
+        }
+    }
+
+    @Test
+    public void handsOutOnlyTheWantedParts() throws Exception {
+        String boundary = "-----1234";
+        char[] attachment = new char[100_000];
+        Arrays.fill(attachment, 'x');
+        Iterator<StreamingPart> form = StreamingMultipartFormParts.only(
+            StreamingMultipartFormParts.parse(boundary.getBytes(StandardCharsets.UTF_8), new ByteArrayInputStream(
+                new ValidMultipartFormBuilder(boundary)
+                    .file("file", "foo.tab", "text/whatever", new String(attachment))
+                    .field("field", "fieldValue")
+                    .file("another", "bar.tab", "text/whatever", new String(attachment))
+                    .field("otherField", "otherValue")
+                    .build()), StandardCharsets.UTF_8),
+            PartMetaData::isFormField).iterator();
+
+        assertFieldPart(form, "field", "fieldValue");
+        assertFieldPart(form, "otherField", "otherValue");
+        assertThereAreNoMoreParts(form);
+    }
+
+    private void assertRealLifeFileSlices(Iterator<StreamingPart> parts, String fileName) throws IOException {
+        StreamingPart file = parts.next();
+        assertThat("file name", file.getFileName(), equalTo(fileName));
+        compareStreamToFile(new ByteArrayInputStream(readAllSlices(file)), fileName);
+    }
+
+    private static byte[] readAllSlices(StreamingPart part) throws IOException {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        ByteBuffer slice;
+        while ((slice = part.readSlice()) != null) {
+            assertThat("slices are read only", slice.isReadOnly(), equalTo(true));
+            byte[] bytes = new byte[slice.remaining()];
+            slice.get(bytes);
+            contents.write(bytes);
+        }
+        return contents.toByteArray();
+    }
+
     private void assertRealLifeFile(Iterator<StreamingPart> parts, String fileName, String contentType) throws IOException {
         StreamingPart file = parts.next();
         assertThat("field name", file.getFieldName(), equalTo("uploadManuscript"));
@@ -345,12 +566,16 @@ public class StreamingMultipartFormHappyTests {
     }
 
     static StreamingPart assertFilePart(Iterator<StreamingPart> form, String fieldName, String fileName, String contentType, String contents, Charset encoding) throws IOException {
+        return assertFilePart(form, fieldName, fileName, contentType, contents, encoding, 4096);
+    }
+
+    static StreamingPart assertFilePart(Iterator<StreamingPart> form, String fieldName, String fileName, String contentType, String contents, Charset encoding, int maxPartContentSize) throws IOException {
         assertThereAreMoreParts(form);
         StreamingPart file = form.next();
         assertThat("file name", file.getFileName(), equalTo(fileName));
         assertThat("content type", file.getContentType(), equalTo(contentType));
         assertPartIsNotField(file);
-        assertPart(fieldName, contents, file, encoding);
+        assertPart(fieldName, contents, file, encoding, maxPartContentSize);
         return file;
     }
 
@@ -367,8 +592,12 @@ public class StreamingMultipartFormHappyTests {
     }
 
     static void assertPart(String fieldName, String fieldValue, StreamingPart StreamingPart, Charset encoding) throws IOException {
+        assertPart(fieldName, fieldValue, StreamingPart, encoding, 4096);
+    }
+
+    static void assertPart(String fieldName, String fieldValue, StreamingPart StreamingPart, Charset encoding, int maxPartContentSize) throws IOException {
         assertThat("field name", StreamingPart.getFieldName(), equalTo(fieldName));
-        assertThat("contents", StreamingPart.getContentsAsString(encoding, 4096), equalTo(fieldValue));
+        assertThat("contents", StreamingPart.getContentsAsString(encoding, maxPartContentSize), equalTo(fieldValue));
     }
 
     static void assertThereAreNoMoreParts(Iterator<StreamingPart> form) {
@@ -0,0 +1,50 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BoyerMooreHorspoolTest {
+
+    @Test
+    public void finds_token_in_buffer() throws Exception {
+        byte[] buffer = "hello my name is Tiest".getBytes();
+        BoyerMooreHorspool search = new BoyerMooreHorspool("name".getBytes());
+
+        assertThat(search.firstCandidate(buffer, -1L, 0, buffer.length), equalTo(9L));
+        assertThat(search.firstCandidate(buffer, -1L, 9, buffer.length), equalTo(9L));
+    }
+
+    @Test
+    public void stops_where_token_might_run_past_end_of_buffer() throws Exception {
+        byte[] buffer = "hello my name is Tiest".getBytes();
+        BoyerMooreHorspool search = new BoyerMooreHorspool("Tiesto".getBytes());
+
+        long candidate = search.firstCandidate(buffer, -1L, 0, buffer.length);
+
+        assertThat(candidate > buffer.length - "Tiesto".length(), equalTo(true));
+        assertThat(candidate <= "hello my name is ".length(), equalTo(true));
+    }
+
+    @Test
+    public void finds_token_that_wraps_around_ring_buffer() throws Exception {
+        byte[] bytes = "hello my name is Tiest".getBytes();
+        byte[] ring = new byte[16];
+        long start = 40; // "hello my " is at the end of the ring, "name is" wraps to the start
+        for (int i = 0; i < ring.length; i++) {
+            ring[(int) ((start + i) & 15)] = bytes[i];
+        }
+        BoyerMooreHorspool search = new BoyerMooreHorspool("my name".getBytes());
+
+        assertThat(search.firstCandidate(ring, 15L, start, start + ring.length), equalTo(start + 6));
+    }
+
+    @Test
+    public void returns_end_if_buffer_is_shorter_than_token() throws Exception {
+        byte[] buffer = "abc".getBytes();
+        BoyerMooreHorspool search = new BoyerMooreHorspool("abcd".getBytes());
+
+        assertThat(search.firstCandidate(buffer, -1L, 0, buffer.length), equalTo(0L));
+    }
+}
@@ -0,0 +1,99 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BufferPoolTest {
+
+    @Test
+    public void lends_buffers_in_power_of_two_size_classes() throws Exception {
+        BufferPool pool = new BufferPool(4, 1024 * 1024);
+
+        assertThat(pool.borrow(1).length, equalTo(1));
+        assertThat(pool.borrow(1000).length, equalTo(1024));
+        assertThat(pool.borrow(1024).length, equalTo(1024));
+        assertThat(pool.borrow(BufferPool.MAX_POOLED_SIZE + 1).length, equalTo(BufferPool.MAX_POOLED_SIZE + 1));
+        assertThat(pool.misses(), equalTo(4L));
+    }
+
+    @Test
+    public void lends_buffers_given_back_zeroed() throws Exception {
+        BufferPool pool = new BufferPool(4, 1024 * 1024);
+        byte[] buffer = pool.borrow(1000);
+        buffer[0] = 1;
+        buffer[1023] = 2;
+
+        pool.giveBack(buffer);
+        assertThat(pool.pooledBytes(), equalTo(1024L));
+
+        byte[] again = pool.borrow(600);
+        assertThat(again, sameInstance(buffer));
+        assertThat(again[0], equalTo((byte) 0));
+        assertThat(again[1023], equalTo((byte) 0));
+        assertThat(pool.hits(), equalTo(1L));
+        assertThat(pool.pooledBytes(), equalTo(0L));
+    }
+
+    @Test
+    public void lends_direct_buffers_given_back_zeroed() throws Exception {
+        BufferPool pool = new BufferPool(1, 1024 * 1024);
+        ByteBuffer buffer = pool.borrowDirect(100);
+        assertThat(buffer.isDirect(), equalTo(true));
+        assertThat(buffer.remaining(), equalTo(128));
+        buffer.put(127, (byte) 1).position(10).limit(20);
+
+        pool.giveBack(buffer);
+
+        ByteBuffer again = pool.borrowDirect(128);
+        assertThat(again, sameInstance(buffer));
+        assertThat(again.position(), equalTo(0));
+        assertThat(again.limit(), equalTo(128));
+        assertThat(again.get(127), equalTo((byte) 0));
+    }
+
+    @Test
+    public void lends_buffers_given_back_by_other_threads() throws Exception {
+        BufferPool pool = new BufferPool(64, 1024 * 1024);
+        byte[] buffer = new byte[1024];
+        Thread givesBack = new Thread(() -> pool.giveBack(buffer));
+        givesBack.start();
+        givesBack.join();
+
+        assertThat(pool.borrow(1024), sameInstance(buffer));
+        assertThat(pool.hits(), equalTo(1L));
+    }
+
+    @Test
+    public void holds_no_more_than_its_cap() throws Exception {
+        BufferPool pool = new BufferPool(2, 2048);
+
+        pool.giveBack(new byte[1024]);
+        pool.giveBack(new byte[1024]);
+        pool.giveBack(new byte[1024]);
+        pool.giveBack(new byte[1000]); // not a size class
+
+        assertThat(pool.pooledBytes(), equalTo(2048L));
+        assertThat(pool.dropped(), equalTo(2L));
+    }
+
+    @Test
+    public void ring_buffer_goes_back_to_the_pool_when_the_stream_is_finished_with() throws Exception {
+        BufferPool pool = BufferPool.shared();
+        CircularBufferedInputStream stream = new CircularBufferedInputStream(new ByteArrayInputStream("some bytes".getBytes()), 4096);
+        long pooled = pool.pooledBytes();
+
+        while (stream.read() >= 0) {
+            // read it all
+        }
+        stream.releaseBuffer();
+
+        assertThat(pool.pooledBytes(), equalTo(pooled + 8192));
+        assertThat(stream.read(), equalTo(-1));
+    }
+}
@@ -0,0 +1,128 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ChunkedBytesTest {
+
+    @Test
+    public void holds_a_short_stream_in_one_small_chunk() throws Exception {
+        BufferPool pool = new BufferPool(1, 1024 * 1024);
+        ChunkedBytes bytes = new ChunkedBytes(pool);
+
+        assertThat(bytes.readFrom(new ByteArrayInputStream("abc".getBytes(UTF_8)), 1024 * 1024), equalTo(true));
+
+        ByteBuffer[] buffers = bytes.buffers();
+        assertThat(buffers.length, equalTo(1));
+        assertThat(buffers[0].remaining(), equalTo(3));
+        assertThat(bytes.toString(UTF_8), equalTo("abc"));
+
+        bytes.release();
+        assertThat(pool.pooledBytes(), equalTo((long) ChunkedBytes.FIRST_CHUNK_SIZE));
+    }
+
+    @Test
+    public void grows_in_doubling_chunks_without_copying() throws Exception {
+        byte[] contents = contents(200_000);
+        ChunkedBytes bytes = new ChunkedBytes(new BufferPool(1, 1024 * 1024));
+
+        assertThat(bytes.readFrom(new ByteArrayInputStream(contents), Integer.MAX_VALUE), equalTo(true));
+
+        ByteBuffer[] buffers = bytes.buffers();
+        assertThat(buffers[0].remaining(), equalTo(256));
+        assertThat(buffers[1].remaining(), equalTo(512));
+        assertThat(buffers[buffers.length - 2].remaining(), equalTo(ChunkedBytes.MAX_CHUNK_SIZE));
+        assertThat(bytes.length(), equalTo(contents.length));
+        assertThat(bytes.toByteArray(), equalTo(contents));
+        assertThat(readAll(bytes.inputStream()), equalTo(contents));
+    }
+
+    @Test
+    public void stops_reading_at_the_limit() throws Exception {
+        byte[] contents = contents(1000);
+        ByteArrayInputStream in = new ByteArrayInputStream(contents);
+        ChunkedBytes bytes = new ChunkedBytes(new BufferPool(1, 1024 * 1024));
+
+        assertThat(bytes.readFrom(in, 600), equalTo(false));
+        assertThat(bytes.length(), equalTo(600));
+        assertThat(in.available(), equalTo(400));
+
+        assertThat(bytes.readFrom(in, 2000), equalTo(true));
+        assertThat(bytes.toByteArray(), equalTo(contents));
+    }
+
+    @Test
+    public void decodes_characters_split_between_chunks() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1000) {
+            text.append("é");
+        }
+        text.insert(0, "x"); // so the two bytes of some é straddle the end of the first chunk
+        ChunkedBytes bytes = new ChunkedBytes(new BufferPool(1, 1024 * 1024));
+
+        bytes.readFrom(new ByteArrayInputStream(text.toString().getBytes(UTF_8)), Integer.MAX_VALUE);
+
+        assertThat(bytes.toString(UTF_8), equalTo(text.toString()));
+    }
+
+    @Test
+    public void gives_the_chunks_back_when_released() throws Exception {
+        BufferPool pool = new BufferPool(1, 1024 * 1024);
+        ChunkedBytes bytes = new ChunkedBytes(pool);
+        bytes.readFrom(new ByteArrayInputStream(contents(1000)), Integer.MAX_VALUE);
+
+        bytes.release();
+        bytes.release();
+
+        assertThat(pool.pooledBytes(), equalTo(256L + 512 + 1024));
+        try {
+            bytes.toByteArray();
+            fail("should not be able to read released bytes");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("The bytes have been released"));
+        }
+    }
+
+    @Test
+    public void unpooled_chunks_are_allocated_and_can_still_be_read_once_released() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        ChunkedBytes bytes = new ChunkedBytes(null, budget);
+        bytes.readFrom(new ByteArrayInputStream(contents(1000)), Integer.MAX_VALUE);
+        InputStream stream = bytes.inputStream();
+        assertThat(bytes.isPooled(), equalTo(false));
+        assertThat(budget.reserved(), equalTo(256L + 512 + 1024));
+
+        bytes.release();
+
+        assertThat(budget.reserved(), equalTo(0L));
+        assertThat(bytes.toByteArray(), equalTo(contents(1000)));
+        assertThat(StreamUtil.readAllBytesFromInputStream(stream, 1000), equalTo(contents(1000)));
+    }
+
+    private static byte[] contents(int length) {
+        byte[] contents = new byte[length];
+        for (int i = 0; i < length; i++) {
+            contents[i] = (byte) (i * 31);
+        }
+        return contents;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1000];
+        int count;
+        while ((count = in.read(chunk)) >= 0) {
+            out.write(chunk, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
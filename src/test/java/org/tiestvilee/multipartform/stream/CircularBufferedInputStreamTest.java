@@ -3,8 +3,11 @@ package org.tiestvilee.multipartform.stream;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.InvalidMarkException;
+import java.nio.channels.ScatteringByteChannel;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
@@ -174,6 +177,101 @@ public class CircularBufferedInputStreamTest {
         }
     }
 
+    @Test
+    public void fills_both_ends_of_the_buffer_in_one_scattering_read() throws Exception {
+        byte[] bytes = "hello my name is Tiest".getBytes();
+        ScatteringChannel channel = new ScatteringChannel(bytes, 5);
+        InputStream inputStream = new CircularBufferedInputStream(channel, 4); // buffer of 8 bytes
+
+        byte[] buffer = new byte[5];
+        inputStream.read(buffer, 0, 5); // "hello"
+        inputStream.read(buffer, 0, 5); // " my n", read into the end and then the start of the buffer
+
+        assertThat(new String(buffer), equalTo(" my n"));
+        assertThat(channel.scatteringReads, equalTo(1));
+
+        StringBuilder rest = new StringBuilder();
+        int b;
+        while ((b = inputStream.read()) >= 0) {
+            rest.append((char) b);
+        }
+        assertThat(rest.toString(), equalTo("ame is Tiest"));
+    }
+
+    @Test
+    public void reads_into_a_direct_buffer() throws Exception {
+        byte[] bytes = "hello my name is Tiest".getBytes();
+        InputStream fromStream = new CircularBufferedInputStream(new ByteArrayInputStream(bytes), 4, true);
+        InputStream fromChannel = new CircularBufferedInputStream(new ScatteringChannel(bytes, 5), 4, true);
+
+        for (InputStream inputStream : new InputStream[]{fromStream, fromChannel}) {
+            byte[] buffer = new byte[5];
+            assertThat(inputStream.read(buffer, 0, 5), equalTo(5));
+            assertThat(new String(buffer), equalTo("hello"));
+            inputStream.mark(3);
+            assertThat(inputStream.read(buffer, 0, 5), equalTo(5)); // wraps around the end of the buffer
+            assertThat(new String(buffer), equalTo(" my n"));
+            inputStream.reset();
+
+            StringBuilder rest = new StringBuilder();
+            int b;
+            while ((b = inputStream.read()) >= 0) {
+                rest.append((char) b);
+            }
+            assertThat(rest.toString(), equalTo(" my name is Tiest"));
+        }
+    }
+
+    private static class ScatteringChannel implements ScatteringByteChannel {
+        private final ByteBuffer source;
+        private final int bytesPerRead;
+        int scatteringReads = 0;
+
+        ScatteringChannel(byte[] bytes, int bytesPerRead) {
+            this.source = ByteBuffer.wrap(bytes);
+            this.bytesPerRead = bytesPerRead;
+        }
+
+        @Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            scatteringReads++;
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            int count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                count += copy(dsts[i], bytesPerRead - count);
+            }
+            return count;
+        }
+
+        @Override public long read(ByteBuffer[] dsts) throws IOException {
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException {
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            return copy(dst, bytesPerRead);
+        }
+
+        private int copy(ByteBuffer dst, int maxBytes) {
+            int count = Math.min(maxBytes, Math.min(dst.remaining(), source.remaining()));
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(source.position() + count);
+            dst.put(chunk);
+            source.position(source.position() + count);
+            return count;
+        }
+
+        @Override public boolean isOpen() {
+            return true;
+        }
+
+        @Override public void close() {
+        }
+    }
+
     private InputStream createInputStream(byte[] bytes, int bufSize) {
         return new CircularBufferedInputStream(new ByteArrayInputStream(bytes), bufSize);
 //        return new BufferedInputStream(new ByteArrayInputStream(bytes), bufSize);
@@ -0,0 +1,52 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.tiestvilee.multipartform.stream.KnuthMorrisPrattTest.repeat;
+
+public class GuardedTokenSearchTest {
+    private static final byte[] ALL_DASH_BOUNDARY = ("\r\n" + repeat('-', 70)).getBytes();
+    private static final byte[] ALL_DASH_BODY = repeat('-', 100_000).getBytes();
+
+    @Test
+    public void horspool_is_slow_on_crafted_bodies() throws Exception {
+        BoyerMooreHorspool search = new BoyerMooreHorspool(ALL_DASH_BOUNDARY);
+
+        searchWholeBodyInBufferSizedSteps(search, ALL_DASH_BODY);
+
+        assertThat(search.comparisons, greaterThan(30L * ALL_DASH_BODY.length));
+    }
+
+    @Test
+    public void switches_to_linear_search_when_fast_search_does_too_much_work() throws Exception {
+        GuardedTokenSearch search = new GuardedTokenSearch(new BoyerMooreHorspool(ALL_DASH_BOUNDARY));
+
+        searchWholeBodyInBufferSizedSteps(search, ALL_DASH_BODY);
+
+        assertThat(search.hasSwitchedToLinearSearch(), equalTo(true));
+        assertThat(search.comparisons, lessThan(8L * ALL_DASH_BODY.length));
+    }
+
+    @Test
+    public void keeps_fast_search_for_ordinary_bodies() throws Exception {
+        byte[] body = repeat("Some ordinary text, with the odd line break\r\n", 2000).getBytes();
+        GuardedTokenSearch search = new GuardedTokenSearch(new BoyerMooreHorspool("\r\n------WebKitFormBoundary6LmirFeqsyCQRtbj".getBytes()));
+
+        searchWholeBodyInBufferSizedSteps(search, body);
+
+        assertThat(search.hasSwitchedToLinearSearch(), equalTo(false));
+    }
+
+    private void searchWholeBodyInBufferSizedSteps(TokenSearch search, byte[] body) {
+        long position = 0;
+        while (position < body.length) {
+            long to = Math.min(position + 8192, body.length);
+            long candidate = search.firstCandidate(body, -1L, position, to);
+            position = candidate == position ? to : candidate;
+        }
+    }
+}
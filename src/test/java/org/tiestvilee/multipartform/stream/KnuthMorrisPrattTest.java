@@ -0,0 +1,59 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class KnuthMorrisPrattTest {
+
+    @Test
+    public void finds_token_in_buffer() throws Exception {
+        byte[] buffer = "hello my name is Tiest".getBytes();
+        KnuthMorrisPratt search = new KnuthMorrisPratt("name".getBytes());
+
+        assertThat(search.firstCandidate(buffer, -1L, 0, buffer.length), equalTo(9L));
+        assertThat(search.firstCandidate(buffer, -1L, 9, buffer.length), equalTo(9L));
+    }
+
+    @Test
+    public void carries_on_from_a_partial_match_when_more_of_the_stream_arrives() throws Exception {
+        byte[] buffer = "hello my nanana nanananame".getBytes();
+        KnuthMorrisPratt search = new KnuthMorrisPratt("nananame".getBytes());
+
+        assertThat(search.firstCandidate(buffer, -1L, 0, 21), equalTo(16L));
+        long comparisonsSoFar = search.comparisons;
+
+        assertThat(search.firstCandidate(buffer, -1L, 16, buffer.length), equalTo(18L));
+        assertThat(search.comparisons - comparisonsSoFar, lessThan(12L));
+    }
+
+    @Test
+    public void looks_at_each_byte_a_bounded_number_of_times_however_many_near_misses_there_are() throws Exception {
+        byte[] token = ("\r\n" + repeat('-', 70)).getBytes();
+        byte[] nearMisses = repeat("\r\n" + repeat('-', 69) + "x", 2000).getBytes();
+
+        KnuthMorrisPratt search = new KnuthMorrisPratt(token);
+        long position = 0;
+        while (position < nearMisses.length) {
+            long to = Math.min(position + 8192, nearMisses.length);
+            long candidate = search.firstCandidate(nearMisses, -1L, position, to);
+            position = candidate == position ? to : candidate;
+        }
+
+        assertThat(search.comparisons, lessThan(2L * nearMisses.length));
+    }
+
+    static String repeat(char c, int times) {
+        return repeat(String.valueOf(c), times);
+    }
+
+    static String repeat(String s, int times) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            result.append(s);
+        }
+        return result.toString();
+    }
+}
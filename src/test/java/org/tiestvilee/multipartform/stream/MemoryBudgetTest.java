@@ -0,0 +1,85 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.junit.Test;
+import org.tiestvilee.multipartform.exceptions.MemoryBudgetExceededException;
+
+import java.io.ByteArrayInputStream;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void reserves_only_within_the_limit() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+
+        assertThat(budget.tryReserve(600), equalTo(true));
+        assertThat(budget.tryReserve(600), equalTo(false));
+        assertThat(budget.reserved(), equalTo(600L));
+        assertThat(budget.available(), equalTo(400L));
+
+        budget.release(600);
+        assertThat(budget.tryReserve(1000), equalTo(true));
+        assertThat(budget.peakReserved(), equalTo(1000L));
+    }
+
+    @Test
+    public void shrinks_the_in_memory_limit_as_the_budget_fills() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+
+        assertThat(budget.inMemoryLimit(100), equalTo(100));
+        budget.tryReserve(750);
+        assertThat(budget.inMemoryLimit(100), equalTo(100));
+        budget.tryReserve(125);
+        assertThat(budget.inMemoryLimit(100), equalTo(50));
+        budget.tryReserve(125);
+        assertThat(budget.inMemoryLimit(100), equalTo(0));
+    }
+
+    @Test
+    public void refuses_requests_that_dont_fit() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.tryReserve(600);
+
+        budget.admit(400);
+        try {
+            budget.admit(401);
+            fail("should have refused the request");
+        } catch (MemoryBudgetExceededException e) {
+            assertThat(e.getMessage(), equalTo("Request of 401 bytes doesn't fit in the 400 bytes of memory left"));
+        }
+        assertThat(budget.refused(), equalTo(1L));
+    }
+
+    @Test
+    public void chunks_stop_growing_when_the_budget_runs_out() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024);
+        ChunkedBytes bytes = new ChunkedBytes(new BufferPool(1, 1024 * 1024), budget);
+
+        assertThat(bytes.readFrom(new ByteArrayInputStream(new byte[10_000]), 10_000), equalTo(false));
+        assertThat(bytes.length(), equalTo(768)); // 256 + 512, as the next 1024 wouldn't fit
+        assertThat(budget.reserved(), equalTo(768L));
+        assertThat(budget.spilledEarly(), equalTo(1L));
+
+        bytes.release();
+        assertThat(budget.reserved(), equalTo(0L));
+    }
+
+    @Test
+    public void releases_the_reservation_of_chunks_that_are_never_released() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        ChunkedBytes bytes = new ChunkedBytes(new BufferPool(1, 1024 * 1024), budget);
+        bytes.readFrom(new ByteArrayInputStream(new byte[1000]), 10_000);
+        assertThat(budget.reserved(), equalTo(256L + 512 + 1024));
+
+        bytes = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (budget.reserved() > 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(budget.reserved(), equalTo(0L));
+    }
+}
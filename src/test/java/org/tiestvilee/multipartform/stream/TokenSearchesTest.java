@@ -0,0 +1,66 @@
+package org.tiestvilee.multipartform.stream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TokenSearchesTest {
+    private static final byte[] TOKEN = "\r\n-----1234".getBytes();
+
+    @Test
+    public void never_skips_past_a_token_in_the_ring_buffer() throws Exception {
+        // testMultiRelease runs this on Java 17+ with jdk.incubator.vector, against the vector search in the multi-release jar
+        neverSkipsPastAToken(false);
+    }
+
+    @Test
+    public void never_skips_past_a_token_in_a_direct_ring_buffer() throws Exception {
+        neverSkipsPastAToken(true);
+    }
+
+    private void neverSkipsPastAToken(boolean direct) {
+        TokenSearch search = TokenSearches.forBoundary(TOKEN);
+        Random random = new Random(1234);
+        byte[] ring = new byte[256];
+
+        for (int run = 0; run < 2000; run++) {
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = (byte) "\r\n-123ab".charAt(random.nextInt(8));
+            }
+            long from = random.nextInt(1000);
+            long to = from + random.nextInt(ring.length + 1);
+            int tokenAt = random.nextInt(ring.length);
+            for (int i = 0; i < TOKEN.length; i++) {
+                ring[(int) ((from + tokenAt + i) & 255)] = TOKEN[i];
+            }
+
+            long candidate = direct
+                ? search.firstCandidate((ByteBuffer) ByteBuffer.allocateDirect(ring.length).put(ring).clear(), 255, from, to)
+                : search.firstCandidate(ring, 255, from, to);
+
+            assertThat("candidate within buffer", candidate >= from && candidate <= to, equalTo(true));
+            for (long position = from; position < candidate; position++) {
+                assertThat("skipped a token at " + position, matchesAt(ring, position, to), equalTo(false));
+            }
+            if (candidate + TOKEN.length <= to) {
+                assertThat("candidate is a token", matchesAt(ring, candidate, to), equalTo(true));
+            }
+        }
+    }
+
+    private boolean matchesAt(byte[] ring, long position, long to) {
+        if (position + TOKEN.length > to) {
+            return false;
+        }
+        for (int i = 0; i < TOKEN.length; i++) {
+            if (ring[(int) ((position + i) & 255)] != TOKEN[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}